@@ -0,0 +1,71 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Scanning, parsing and resolving each script in test/benchmark, separately. Each stage gets the
+// previous stage's output, prepared once per trial, except that the resolver writes into the tree
+// and so gets a freshly parsed one for every call.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrontEndBenchmark {
+  @Param({"binary_trees", "equality", "fib", "instantiation", "invocation",
+          "method_call", "properties", "string_equality", "trees", "zoo"})
+  public String script;
+
+  private String source;
+  private List<Token> tokens;
+
+  @Setup
+  public void setUp() throws IOException {
+    source = ScriptBenchmark.read(script);
+    tokens = new Scanner(source).scanTokens();
+  }
+
+  // An unresolved tree and a fresh interpreter for its globals, made outside the measured call
+  @State(Scope.Thread)
+  public static class Unresolved {
+    List<Stmt> statements;
+    Interpreter interpreter;
+
+    @Setup(Level.Invocation)
+    public void setUp(final FrontEndBenchmark benchmark) {
+      statements = new Parser(benchmark.tokens).parseProgram();
+      interpreter = new Interpreter();
+    }
+  }
+
+  @Benchmark
+  public List<Token> scan() {
+    return new Scanner(source).scanTokens();
+  }
+
+  @Benchmark
+  public List<Stmt> parse() {
+    return new Parser(tokens).parseProgram();
+  }
+
+  @Benchmark
+  public List<Stmt> resolve(final Unresolved input) {
+    new Resolver(input.interpreter).resolve(input.statements);
+    return input.statements;
+  }
+}
@@ -0,0 +1,65 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Each script in test/benchmark end to end, as `jlox script` runs it: scanned, parsed, resolved and
+// optimized afresh by Lox.run so that no JIT state carries over, then run by a fresh interpreter.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ScriptBenchmark {
+  @Param({"binary_trees", "equality", "fib", "instantiation", "invocation",
+          "method_call", "properties", "string_equality", "trees", "zoo"})
+  public String script;
+
+  private String source;
+  private PrintStream out;
+
+  // Relative to jlox/, where `make bench` runs
+  static String read(final String script) throws IOException {
+    return new String(Files.readAllBytes(Paths.get("../test/benchmark", script + ".lox")), StandardCharsets.UTF_8);
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    source = read(script);
+    // The scripts print their results and timings, which would only clutter the report
+    out = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.setOut(out);
+  }
+
+  @Benchmark
+  public Interpreter interpret() {
+    final Interpreter interpreter = new Interpreter();
+    Lox.run(interpreter, source);
+    if (Lox.hadError || Lox.hadRuntimeError) throw new IllegalStateException(script + " failed");
+    return interpreter;
+  }
+}
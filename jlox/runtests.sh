@@ -1,19 +1,30 @@
 #!/bin/bash
+# A test may have a .in file for its standard input and a .flags file for jlox's options. Its
+# standard error is checked too when tests/correct has a .err file for it.
 for file in tests/*.lox ; do
   echo $file
+  flags=""
+  if [ -f ${file/.lox/.flags} ]; then
+    flags=$(cat ${file/.lox/.flags})
+  fi
   if [ -f ${file/.lox/.in} ]; then
-    ./jlox $file > ${file/.lox/.out} < ${file/.lox/.in} ;
+    ./jlox $flags $file > ${file/.lox/.out} 2> ${file/.lox/.err} < ${file/.lox/.in} ;
   else
-    ./jlox $file > ${file/.lox/.out} ;
+    ./jlox $flags $file > ${file/.lox/.out} 2> ${file/.lox/.err} ;
   fi
 
   tmp=${file/tests/tests\/correct}
   diff ${file/.lox/.out} ${tmp/.lox/.out} > ${file/.lox/.diff} ;
   error=$?
+  if [ $error -eq 0 ] && [ -f ${tmp/.lox/.err} ]; then
+    diff ${file/.lox/.err} ${tmp/.lox/.err} > ${file/.lox/.diff} ;
+    error=$?
+  fi
   if [ $error -eq 0 ]
   then
     rm ${file/.lox/.diff}
     rm ${file/.lox/.out}
+    rm ${file/.lox/.err}
   else
     echo "Test $file failed."
   fi
@@ -115,7 +115,8 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
 
   @Override
   public String visitWhileStmt(final Stmt.While stmt) {
-    return parenthesize("while", new Stmt.Expression(stmt.condition), stmt.body);
+    return parenthesize("while", new Stmt.Expression(stmt.condition), stmt.body,
+                        stmt.increment == null ? null : new Stmt.Expression(stmt.increment));
   }
 
   @Override
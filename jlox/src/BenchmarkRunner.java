@@ -0,0 +1,194 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Runs the scripts in test/benchmark in-process, each on a fresh interpreter, after a few warmup
+// runs. Records wall time, CPU time and allocated bytes per run, writes the medians as JSON and,
+// given a baseline written by an earlier run, reports the scripts that got slower or allocate
+// more by more than the threshold, exiting with 1 if any did.
+class BenchmarkRunner {
+  private static final com.sun.management.ThreadMXBean threads =
+    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  // One script per line, as written by write()
+  private static final Pattern RESULT =
+    Pattern.compile("\"([^\"]+)\": \\{\"wall_ms\": ([0-9.]+), \"cpu_ms\": ([0-9.]+), \"allocated_bytes\": ([0-9]+)\\}");
+
+  private static class Result {
+    final double wall_ms, cpu_ms;
+    final long allocated_bytes;
+
+    Result(final double wall_ms, final double cpu_ms, final long allocated_bytes) {
+      this.wall_ms = wall_ms;
+      this.cpu_ms = cpu_ms;
+      this.allocated_bytes = allocated_bytes;
+    }
+  }
+
+  public static void main(final String[] args) throws IOException {
+    int warmup = 3, runs = 5;
+    double threshold = 10;
+    Path directory = Paths.get("../test/benchmark"), output = Paths.get("benchmark.json"), baseline = null;
+    int arg = 0;
+    for (; arg < args.length && args[arg].startsWith("--"); arg++) {
+      final String option = args[arg], value = option.substring(option.indexOf('=') + 1);
+      if (option.startsWith("--warmup=")) {
+        warmup = Integer.parseInt(value);
+      } else if (option.startsWith("--runs=")) {
+        runs = Integer.parseInt(value);
+      } else if (option.startsWith("--dir=")) {
+        directory = Paths.get(value);
+      } else if (option.startsWith("--output=")) {
+        output = Paths.get(value);
+      } else if (option.startsWith("--baseline=")) {
+        baseline = Paths.get(value);
+      } else if (option.startsWith("--threshold=")) {
+        threshold = Double.parseDouble(value);
+      } else if (option.equals("--vm")) {
+        Lox.useVm = true;
+      } else if (option.equals("--no-jit")) {
+        Lox.jitThreshold = 0;
+      } else {
+        usage();
+      }
+    }
+    if (runs < 1) usage();
+
+    final List<String> scripts = new ArrayList<>(Arrays.asList(args).subList(arg, args.length));
+    if (scripts.isEmpty()) {
+      try (final Stream<Path> files = Files.list(directory)) {
+        scripts.addAll(files.map(file -> file.getFileName().toString())
+          .filter(name -> name.endsWith(".lox"))
+          .map(name -> name.substring(0, name.length() - ".lox".length()))
+          .sorted().collect(Collectors.toList()));
+      }
+    }
+
+    final Map<String, Result> results = new HashMap<>();
+    for (final String script : scripts) {
+      final String source = new String(Files.readAllBytes(directory.resolve(script + ".lox")), StandardCharsets.UTF_8);
+      for (int i = 0; i < warmup; i++) run(script, source);
+      final Result[] samples = new Result[runs];
+      for (int i = 0; i < runs; i++) samples[i] = run(script, source);
+      final Result result = median(samples);
+      results.put(script, result);
+      System.out.println(String.format(Locale.ROOT, "%-20s %10.1f ms wall %10.1f ms cpu %14d bytes",
+        script, result.wall_ms, result.cpu_ms, result.allocated_bytes));
+    }
+    write(output, scripts, results);
+
+    if (baseline != null && compare(read(baseline), scripts, results, threshold)) System.exit(1);
+  }
+
+  private static void usage() {
+    System.out.println("Usage: BenchmarkRunner [--warmup=runs] [--runs=runs] [--dir=path] [--output=file.json]\n" +
+                       "                       [--baseline=file.json] [--threshold=percent] [--vm] [--no-jit] [script...]");
+    System.exit(64);
+  }
+
+  // The scripts print their own timings, which are not what is being measured
+  private static Result run(final String script, final String source) {
+    final PrintStream out = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    final long thread = Thread.currentThread().getId();
+    final long allocated = threads.getThreadAllocatedBytes(thread);
+    final long cpu = threads.getCurrentThreadCpuTime();
+    final long start = System.nanoTime();
+    try {
+      Lox.run(new Interpreter(), source);
+    } finally {
+      System.setOut(out);
+    }
+    final long wall = System.nanoTime() - start;
+    final Result result = new Result(wall / 1e6, (threads.getCurrentThreadCpuTime() - cpu) / 1e6,
+                                     threads.getThreadAllocatedBytes(thread) - allocated);
+    if (Lox.hadError || Lox.hadRuntimeError) {
+      System.err.println(script + " failed");
+      System.exit(70);
+    }
+    return result;
+  }
+
+  // Each measure's median, independently
+  private static Result median(final Result[] samples) {
+    final double[] wall = new double[samples.length], cpu = new double[samples.length];
+    final long[] allocated = new long[samples.length];
+    for (int i = 0; i < samples.length; i++) {
+      wall[i] = samples[i].wall_ms;
+      cpu[i] = samples[i].cpu_ms;
+      allocated[i] = samples[i].allocated_bytes;
+    }
+    Arrays.sort(wall);
+    Arrays.sort(cpu);
+    Arrays.sort(allocated);
+    return new Result(wall[samples.length / 2], cpu[samples.length / 2], allocated[samples.length / 2]);
+  }
+
+  private static void write(final Path output, final List<String> scripts, final Map<String, Result> results)
+      throws IOException {
+    final List<String> lines = new ArrayList<>();
+    lines.add("{");
+    for (int i = 0; i < scripts.size(); i++) {
+      final Result result = results.get(scripts.get(i));
+      lines.add(String.format(Locale.ROOT, "  \"%s\": {\"wall_ms\": %.3f, \"cpu_ms\": %.3f, \"allocated_bytes\": %d}%s",
+        scripts.get(i), result.wall_ms, result.cpu_ms, result.allocated_bytes, i < scripts.size() - 1 ? "," : ""));
+    }
+    lines.add("}");
+    Files.write(output, lines, StandardCharsets.UTF_8);
+  }
+
+  private static Map<String, Result> read(final Path baseline) throws IOException {
+    final Map<String, Result> results = new HashMap<>();
+    for (final String line : Files.readAllLines(baseline, StandardCharsets.UTF_8)) {
+      final Matcher matcher = RESULT.matcher(line);
+      if (matcher.find()) {
+        results.put(matcher.group(1), new Result(Double.parseDouble(matcher.group(2)),
+          Double.parseDouble(matcher.group(3)), Long.parseLong(matcher.group(4))));
+      }
+    }
+    return results;
+  }
+
+  // Returns whether any script regressed
+  private static boolean compare(final Map<String, Result> baseline, final List<String> scripts,
+                                 final Map<String, Result> results, final double threshold) {
+    boolean regressed = false;
+    System.out.println();
+    for (final String script : scripts) {
+      final Result before = baseline.get(script), after = results.get(script);
+      if (before == null) {
+        System.out.println(String.format(Locale.ROOT, "%-20s not in baseline", script));
+        continue;
+      }
+      final double wall = change(before.wall_ms, after.wall_ms);
+      final double allocated = change(before.allocated_bytes, after.allocated_bytes);
+      final boolean worse = wall > threshold || allocated > threshold;
+      regressed |= worse;
+      System.out.println(String.format(Locale.ROOT, "%-20s %+8.1f%% wall %+8.1f%% allocated%s",
+        script, wall, allocated, worse ? "  REGRESSION" : ""));
+    }
+    return regressed;
+  }
+
+  // Percent change, where a baseline of zero only regresses if something is now measured
+  private static double change(final double before, final double after) {
+    if (before == 0) return after == 0 ? 0 : Double.POSITIVE_INFINITY;
+    return (after - before) / before * 100;
+  }
+}
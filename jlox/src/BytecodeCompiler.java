@@ -0,0 +1,409 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.craftinginterpreters.lox.Chunk.*;
+
+// Compiles resolved statements into Chunks for the VM. Locals live on the VM's value stack, so
+// each scope's slots, as numbered by the resolver, are mapped onto slots of the function's frame.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private static class Loop {
+    final int start, locals;
+    final List<Integer> breaks = new ArrayList<>(), continues = new ArrayList<>();
+
+    Loop(final int start, final int locals) {
+      this.start = start;
+      this.locals = locals;
+    }
+  }
+
+  private final Chunk chunk = new Chunk();
+  // The frame slot of each resolver slot in each scope, innermost last. Empty at the top level of
+  // a script, where declarations are globals.
+  private final List<List<Integer>> scopes = new ArrayList<>();
+  private int locals = 0;
+  // Locals declared without an initializer, which must be checked when read
+  private final Set<Integer> maybe_uninitialized = new HashSet<>();
+  private final List<Loop> loops = new ArrayList<>();
+
+  static Chunk compile(final List<Stmt> statements) {
+    final BytecodeCompiler compiler = new BytecodeCompiler();
+    for (final Stmt statement : statements) compiler.execute(statement);
+    compiler.chunk.write(OP_NIL);
+    compiler.chunk.write(OP_RETURN);
+    return compiler.chunk;
+  }
+
+  // The receiver, if any, and the arguments are already in the first slots of the frame
+  private static Chunk compile(final Stmt.Function declaration, final LoxFunctionType type) {
+    final BytecodeCompiler compiler = new BytecodeCompiler();
+    compiler.scopes.add(new ArrayList<>());
+    if (type != LoxFunctionType.FUNCTION) compiler.declareLocal();
+    for (int i = 0; i < declaration.params.size(); i++) compiler.declareLocal();
+    for (final Stmt statement : declaration.body) compiler.execute(statement);
+    compiler.chunk.write(OP_NIL);
+    compiler.chunk.write(OP_RETURN);
+    return compiler.chunk;
+  }
+
+  private void execute(final Stmt stmt) {
+    if (stmt != null) stmt.accept(this);
+  }
+
+  private void compile(final Expr expr) {
+    expr.accept(this);
+  }
+
+  private int constant(final Object value) {
+    return chunk.addConstant(value);
+  }
+
+  private int declareLocal() {
+    scopes.get(scopes.size() - 1).add(locals);
+    return locals++;
+  }
+
+  private int local(final int depth, final int slot) {
+    return scopes.get(scopes.size() - 1 - depth).get(slot);
+  }
+
+  private void beginScope() {
+    scopes.add(new ArrayList<>());
+  }
+
+  private void endScope() {
+    final int count = scopes.remove(scopes.size() - 1).size();
+    locals -= count;
+    if (count > 0) chunk.write(OP_POPN, count);
+  }
+
+  private int jump(final int opcode) {
+    chunk.write(opcode, -1);
+    return chunk.count - 1;
+  }
+
+  private void patch(final int operand) {
+    chunk.code[operand] = chunk.count;
+  }
+
+  private void closure(final Stmt.Function declaration, final LoxFunctionType type) {
+    if (declaration.chunk == null) declaration.chunk = compile(declaration, type);
+    final int[] captures = new int[declaration.capture_depths.length];
+    for (int i = 0; i < captures.length; i++) {
+      final int depth = declaration.capture_depths[i], slot = declaration.capture_slots[i];
+      captures[i] = depth < 0 ? -1 - slot : local(depth, slot);
+    }
+    chunk.write(OP_CLOSURE, constant(new Prototype(declaration, type, captures)));
+  }
+
+  // Stores the value on top of the stack in a variable declared before its value was computed
+  private void define(final Token name, final int slot, final boolean is_boxed) {
+    if (slot < 0) {
+      chunk.write(OP_DEFINE_GLOBAL, constant(name));
+    } else {
+      chunk.write(is_boxed ? OP_SET_BOXED : OP_SET_LOCAL, slot);
+      chunk.write(OP_POP);
+    }
+  }
+
+  // Returns the frame slot for a local, or -1 at the top level
+  private int declareUninitialized(final boolean is_boxed) {
+    if (scopes.isEmpty()) return -1;
+    chunk.write(OP_UNINITIALIZED);
+    if (is_boxed) chunk.write(OP_BOX);
+    return declareLocal();
+  }
+
+  @Override
+  public Void visitBinaryExpr(final Expr.Binary expr) {
+    compile(expr.left);
+    compile(expr.right);
+    final int operator = constant(expr.operator);
+    switch (expr.operator.type) {
+      case PLUS: chunk.write(OP_ADD, operator); break;
+      case MINUS: chunk.write(OP_SUBTRACT, operator); break;
+      case STAR: chunk.write(OP_MULTIPLY, operator); break;
+      case SLASH: chunk.write(OP_DIVIDE, operator); break;
+      case GREATER: chunk.write(OP_GREATER, operator); break;
+      case GREATER_EQUAL: chunk.write(OP_GREATER_EQUAL, operator); break;
+      case LESS: chunk.write(OP_LESS, operator); break;
+      case LESS_EQUAL: chunk.write(OP_LESS_EQUAL, operator); break;
+      case EQUAL_EQUAL: chunk.write(OP_EQUAL); break;
+      case BANG_EQUAL: chunk.write(OP_NOT_EQUAL); break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(final Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(final Expr.Literal expr) {
+    if (expr.value == null) chunk.write(OP_NIL);
+    else if (expr.value instanceof Boolean) chunk.write((boolean) expr.value ? OP_TRUE : OP_FALSE);
+    else chunk.write(OP_CONSTANT, constant(expr.value));
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(final Expr.Unary expr) {
+    compile(expr.right);
+    if (expr.operator.type == TokenType.MINUS) chunk.write(OP_NEGATE, constant(expr.operator));
+    else chunk.write(OP_NOT);
+    return null;
+  }
+
+  @Override
+  public Void visitCommaExpr(final Expr.Comma expr) {
+    compile(expr.left);
+    chunk.write(OP_POP);
+    compile(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitTernaryExpr(final Expr.Ternary expr) {
+    compile(expr.condition);
+    final int false_expr = jump(OP_JUMP_IF_FALSE);
+    compile(expr.true_expr);
+    final int end = jump(OP_JUMP);
+    patch(false_expr);
+    compile(expr.false_expr);
+    patch(end);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(final Expr.Variable expr) {
+    final int name = constant(expr.name);
+    if (expr.is_global) {
+      chunk.write(OP_GET_GLOBAL, expr.slot, name);
+    } else if (expr.is_upvalue) {
+      chunk.write(expr.is_boxed ? OP_GET_UPVALUE_BOXED : OP_GET_UPVALUE, expr.slot, name);
+    } else {
+      final int slot = local(expr.depth, expr.slot);
+      if (expr.is_boxed) chunk.write(OP_GET_BOXED, slot, name);
+      else if (maybe_uninitialized.contains(slot)) chunk.write(OP_GET_LOCAL_CHECKED, slot, name);
+      else chunk.write(OP_GET_LOCAL, slot);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(final Expr.Assign expr) {
+    compile(expr.value);
+    if (expr.is_global)
+      chunk.write(OP_SET_GLOBAL, expr.slot, constant(expr.name));
+    else if (expr.is_upvalue) // Captured variables that are assigned to are always boxed
+      chunk.write(OP_SET_UPVALUE_BOXED, expr.slot);
+    else
+      chunk.write(expr.is_boxed ? OP_SET_BOXED : OP_SET_LOCAL, local(expr.depth, expr.slot));
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(final Expr.Logical expr) {
+    compile(expr.left);
+    final int end = jump(expr.operator.type == TokenType.OR ? OP_OR : OP_AND);
+    compile(expr.right);
+    patch(end);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(final Expr.Call expr) {
+    // Method calls call the method on the receiver instead of binding it
+    if (expr.callee instanceof Expr.Get) {
+      final Expr.Get get = (Expr.Get) expr.callee;
+      compile(get.object);
+      chunk.write(OP_GET_METHOD, constant(get.name), constant(expr.cache));
+      for (final Expr argument : expr.arguments) compile(argument);
+      chunk.write(OP_INVOKE, expr.arguments.size(), constant(expr.paren));
+      return null;
+    }
+    compile(expr.callee);
+    for (final Expr argument : expr.arguments) compile(argument);
+    chunk.write(OP_CALL, expr.arguments.size(), constant(expr.paren));
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(final Expr.Get expr) {
+    compile(expr.object);
+    chunk.write(OP_GET_PROPERTY, constant(expr.name), constant(expr.cache));
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(final Expr.Set expr) {
+    compile(expr.object);
+    chunk.write(OP_CHECK_INSTANCE, constant(expr.name));
+    compile(expr.value);
+    chunk.write(OP_SET_PROPERTY, constant(expr.name), constant(expr.cache));
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(final Expr.This expr) {
+    if (expr.is_upvalue) chunk.write(OP_GET_THIS_UPVALUE, expr.slot);
+    else chunk.write(OP_GET_LOCAL, local(expr.depth, expr.slot));
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(final Expr.Super expr) {
+    if (expr.is_upvalue) chunk.write(OP_GET_THIS_UPVALUE, expr.slot);
+    else chunk.write(OP_GET_LOCAL, local(expr.depth, expr.slot));
+    visitThisExpr(expr.receiver);
+    chunk.write(OP_GET_SUPER, constant(expr.method));
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(final Stmt.Expression stmt) {
+    if (stmt.expression != null) {
+      compile(stmt.expression);
+      chunk.write(OP_POP);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(final Stmt.Var stmt) {
+    if (stmt.initializer == null) chunk.write(OP_UNINITIALIZED);
+    else compile(stmt.initializer);
+    if (scopes.isEmpty()) {
+      chunk.write(OP_DEFINE_GLOBAL, constant(stmt.name));
+      return null;
+    }
+    if (stmt.is_boxed) chunk.write(OP_BOX);
+    final int slot = declareLocal();
+    if (stmt.initializer == null) maybe_uninitialized.add(slot);
+    return null;
+  }
+
+  @Override
+  public Void visitBlockStmt(final Stmt.Block stmt) {
+    if (stmt.has_scope) beginScope();
+    for (final Stmt statement : stmt.statements) execute(statement);
+    if (stmt.has_scope) endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(final Stmt.If stmt) {
+    compile(stmt.condition);
+    final int false_branch = jump(OP_JUMP_IF_FALSE);
+    execute(stmt.true_branch);
+    if (stmt.false_branch == null) {
+      patch(false_branch);
+      return null;
+    }
+    final int end = jump(OP_JUMP);
+    patch(false_branch);
+    execute(stmt.false_branch);
+    patch(end);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(final Stmt.While stmt) {
+    final Loop loop = new Loop(chunk.count, locals);
+    compile(stmt.condition);
+    final int exit = jump(OP_JUMP_IF_FALSE);
+    loops.add(loop);
+    execute(stmt.body);
+    loops.remove(loops.size() - 1);
+    for (final int operand : loop.continues) patch(operand);
+    if (stmt.increment != null) {
+      compile(stmt.increment);
+      chunk.write(OP_POP);
+    }
+    chunk.write(OP_JUMP, loop.start);
+    patch(exit);
+    for (final int operand : loop.breaks) patch(operand);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(final Stmt.Function stmt) {
+    // A function that refers to itself captures the box it is about to be stored in
+    final int slot = declareUninitialized(stmt.is_boxed);
+    closure(stmt, LoxFunctionType.FUNCTION);
+    define(stmt.name, slot, stmt.is_boxed);
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(final Stmt.Class stmt) {
+    final int slot = declareUninitialized(stmt.is_boxed);
+    if (stmt.superclass != null) {
+      compile(stmt.superclass);
+      chunk.write(OP_CHECK_SUPERCLASS, constant(stmt.superclass.name));
+      beginScope();
+      declareLocal();
+    }
+    final List<Stmt.Function> static_blocks = new ArrayList<>();
+    int methods = 0;
+    for (final Stmt.Function method : stmt.methods) {
+      final LoxFunctionType type = Interpreter.methodType(method);
+      if (type == LoxFunctionType.STATIC_INIT) {
+        static_blocks.add(method);
+      } else {
+        closure(method, type);
+        methods++;
+      }
+    }
+    chunk.write(OP_CLASS, constant(stmt), methods);
+    chunk.write(OP_DUP);
+    define(stmt.name, slot, stmt.is_boxed);
+    // Static blocks run once the class can be referred to by name
+    for (final Stmt.Function block : static_blocks) {
+      closure(block, LoxFunctionType.STATIC_INIT);
+      chunk.write(OP_STATIC_INIT, constant(block.name));
+    }
+    chunk.write(OP_POP);
+    if (stmt.superclass != null) endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(final Stmt.Return stmt) {
+    if (stmt.value == null) chunk.write(OP_NIL);
+    else compile(stmt.value);
+    chunk.write(OP_RETURN);
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(final Stmt.Break stmt) {
+    final Loop loop = innermostLoop(stmt.keyword, "break");
+    if (loop == null) return null;
+    if (locals > loop.locals) chunk.write(OP_POPN, locals - loop.locals);
+    loop.breaks.add(jump(OP_JUMP));
+    return null;
+  }
+
+  @Override
+  public Void visitContinueStmt(final Stmt.Continue stmt) {
+    final Loop loop = innermostLoop(stmt.keyword, "continue");
+    if (loop == null) return null;
+    if (locals > loop.locals) chunk.write(OP_POPN, locals - loop.locals);
+    loop.continues.add(jump(OP_JUMP));
+    return null;
+  }
+
+  private Loop innermostLoop(final Token keyword, final String statement) {
+    if (loops.isEmpty()) {
+      Lox.error(keyword, "Cannot " + statement + " outside of a loop.");
+      return null;
+    }
+    return loops.get(loops.size() - 1);
+  }
+}
@@ -0,0 +1,107 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// Bytecode for one function or script, after clox's Chunk. Instructions and their operands are
+// ints; operands that name a value (including the tokens runtime errors are reported at) index
+// the constant pool, and jump operands are absolute offsets into the code.
+class Chunk {
+  static final int
+    OP_CONSTANT = 0,            // constant
+    OP_NIL = 1,
+    OP_TRUE = 2,
+    OP_FALSE = 3,
+    OP_UNINITIALIZED = 4,
+    OP_POP = 5,
+    OP_POPN = 6,                // count
+    OP_GET_LOCAL = 7,           // slot
+    OP_GET_LOCAL_CHECKED = 8,   // slot, name
+    OP_SET_LOCAL = 9,           // slot
+    OP_BOX = 10,
+    OP_GET_BOXED = 11,          // slot, name
+    OP_SET_BOXED = 12,          // slot
+    OP_GET_UPVALUE = 13,        // index, name
+    OP_GET_UPVALUE_BOXED = 14,  // index, name
+    OP_SET_UPVALUE_BOXED = 15,  // index
+    OP_GET_THIS_UPVALUE = 16,   // index
+    OP_GET_GLOBAL = 17,         // index, name
+    OP_SET_GLOBAL = 18,         // index, name
+    OP_DEFINE_GLOBAL = 19,      // index
+    OP_GET_PROPERTY = 20,       // name, cache
+    OP_CHECK_INSTANCE = 21,     // name
+    OP_SET_PROPERTY = 22,       // name, cache
+    OP_GET_SUPER = 23,          // method
+    OP_ADD = 24,                // operator
+    OP_SUBTRACT = 25,           // operator
+    OP_MULTIPLY = 26,           // operator
+    OP_DIVIDE = 27,             // operator
+    OP_NEGATE = 28,             // operator
+    OP_NOT = 29,
+    OP_EQUAL = 30,
+    OP_NOT_EQUAL = 31,
+    OP_GREATER = 32,            // operator
+    OP_GREATER_EQUAL = 33,      // operator
+    OP_LESS = 34,               // operator
+    OP_LESS_EQUAL = 35,         // operator
+    OP_JUMP = 36,               // target
+    OP_JUMP_IF_FALSE = 37,      // target
+    OP_OR = 38,                 // target
+    OP_AND = 39,                // target
+    OP_CALL = 40,               // argument count, paren
+    OP_CLOSURE = 41,            // prototype
+    OP_CHECK_SUPERCLASS = 42,   // superclass name
+    OP_CLASS = 43,              // class declaration, method count
+    OP_STATIC_INIT = 44,        // keyword
+    OP_DUP = 45,
+    OP_GET_METHOD = 46,         // name, cache
+    OP_INVOKE = 47,             // argument count, paren
+    OP_RETURN = 48;
+
+  // What OP_CLOSURE needs to create a function: each capture is a slot in the enclosing frame,
+  // or -1 - i for the enclosing function's own capture i
+  static class Prototype {
+    final Stmt.Function declaration;
+    final LoxFunctionType type;
+    final int[] captures;
+
+    Prototype(final Stmt.Function declaration, final LoxFunctionType type, final int[] captures) {
+      this.declaration = declaration;
+      this.type = type;
+      this.captures = captures;
+    }
+  }
+
+  int[] code = new int[64];
+  int count = 0;
+  Object[] constants = new Object[16];
+  private int constant_count = 0;
+  private final Map<Object, Integer> constant_indices = new IdentityHashMap<>();
+
+  void write(final int value) {
+    if (count == code.length) code = Arrays.copyOf(code, 2 * count);
+    code[count++] = value;
+  }
+
+  void write(final int opcode, final int operand) {
+    write(opcode);
+    write(operand);
+  }
+
+  void write(final int opcode, final int first, final int second) {
+    write(opcode);
+    write(first);
+    write(second);
+  }
+
+  // Constants are shared by identity, so every use of a token reports at that token
+  int addConstant(final Object value) {
+    final Integer existing = constant_indices.get(value);
+    if (existing != null) return existing;
+    if (constant_count == constants.length) constants = Arrays.copyOf(constants, 2 * constant_count);
+    constants[constant_count] = value;
+    constant_indices.put(value, constant_count);
+    return constant_count++;
+  }
+}
@@ -0,0 +1,316 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of the JVM class file format for the JIT: a constant pool, fields, and methods
+// whose code may branch forwards and backwards. Classes are written as version 50 (Java 6),
+// the last version the JVM verifies without requiring a StackMapTable.
+class ClassFile {
+  static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+  // Opcodes used by the JIT
+  static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, ICONST_1 = 0x04, BIPUSH = 0x10, SIPUSH = 0x11,
+    LDC_W = 0x13, LDC2_W = 0x14, ALOAD = 0x19, DLOAD = 0x18, ASTORE = 0x3a, DSTORE = 0x39, AALOAD = 0x32,
+    AASTORE = 0x53, POP = 0x57, POP2 = 0x58, DUP = 0x59, DUP_X1 = 0x5a, DADD = 0x63, DSUB = 0x67,
+    DMUL = 0x6b, DDIV = 0x6f, DNEG = 0x77, IXOR = 0x82, DCMPL = 0x97, DCMPG = 0x98, IFEQ = 0x99,
+    IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e, GOTO = 0xa7, ARETURN = 0xb0,
+    RETURN = 0xb1, GETSTATIC = 0xb2, GETFIELD = 0xb4, PUTFIELD = 0xb5, INVOKEVIRTUAL = 0xb6,
+    INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, INVOKEINTERFACE = 0xb9, NEW = 0xbb, ANEWARRAY = 0xbd,
+    CHECKCAST = 0xc0;
+
+  // Thrown when a method outgrows what the class file format (or this writer) can express
+  static class TooLarge extends RuntimeException {
+    TooLarge(final String message) {
+      super(message);
+    }
+  }
+
+  static class Label {
+    private int position = -1, stack = -1;
+    private final List<Integer> fixups = new ArrayList<>();
+  }
+
+  class Code {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final int access, name, descriptor;
+    private int stack = 0, max_stack = 0, max_locals;
+
+    private Code(final int access, final int name, final int descriptor, final int parameter_slots) {
+      this.access = access;
+      this.name = name;
+      this.descriptor = descriptor;
+      this.max_locals = parameter_slots;
+    }
+
+    int newLocal(final int size) {
+      final int local = max_locals;
+      max_locals += size;
+      return local;
+    }
+
+    private void adjust(final int delta) {
+      stack += delta;
+      if (stack > max_stack) max_stack = stack;
+    }
+
+    private void u1(final int value) { bytes.write(value & 0xff); }
+    private void u2(final int value) { u1(value >> 8); u1(value); }
+
+    void op(final int opcode, final int delta) {
+      u1(opcode);
+      adjust(delta);
+    }
+
+    void op1(final int opcode, final int operand, final int delta) {
+      u1(opcode);
+      u1(operand);
+      adjust(delta);
+    }
+
+    void op2(final int opcode, final int operand, final int delta) {
+      u1(opcode);
+      u2(operand);
+      adjust(delta);
+    }
+
+    void load(final int opcode, final int local) {
+      if (local > 255) throw new TooLarge("Too many locals");
+      op1(opcode, local, opcode == DLOAD ? 2 : 1);
+    }
+
+    void store(final int opcode, final int local) {
+      if (local > 255) throw new TooLarge("Too many locals");
+      op1(opcode, local, opcode == DSTORE ? -2 : -1);
+    }
+
+    void pushInt(final int value) {
+      if (value == 0) op(ICONST_0, 1);
+      else if (value == 1) op(ICONST_1, 1);
+      else if (value < 128) op1(BIPUSH, value, 1);
+      else op2(SIPUSH, value, 1);
+    }
+
+    void invoke(final int opcode, final String owner, final String name, final String descriptor) {
+      final int delta = slots(returnType(descriptor)) - argumentSlots(descriptor) - (opcode == INVOKESTATIC ? 0 : 1);
+      if (opcode == INVOKEINTERFACE) {
+        u1(opcode);
+        u2(interfaceMethodRef(owner, name, descriptor));
+        u1(argumentSlots(descriptor) + 1);
+        u1(0);
+        adjust(delta);
+      } else {
+        op2(opcode, methodRef(owner, name, descriptor), delta);
+      }
+    }
+
+    void field(final int opcode, final String owner, final String name, final String descriptor) {
+      final int size = slots(descriptor);
+      final int delta = opcode == GETSTATIC ? size : opcode == GETFIELD ? size - 1 : -size - 1;
+      op2(opcode, fieldRef(owner, name, descriptor), delta);
+    }
+
+    void jump(final int opcode, final Label target) {
+      final int position = bytes.size();
+      adjust(opcode == GOTO ? 0 : -1);
+      u1(opcode);
+      if (target.position >= 0) {
+        u2(offset(target.position - position));
+      } else {
+        target.fixups.add(position);
+        u2(0);
+      }
+      if (target.stack < 0) target.stack = stack;
+    }
+
+    // Code after an unconditional jump or return continues at the stack depth of its label
+    void bind(final Label label) {
+      label.position = bytes.size();
+      if (label.stack >= 0) stack = label.stack;
+      else label.stack = stack;
+    }
+
+    private int offset(final int offset) {
+      if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+        throw new TooLarge("Branch offset out of range");
+      return offset;
+    }
+
+    void finish() {
+      final byte[] code = bytes.toByteArray();
+      if (code.length >= 65535) throw new TooLarge("Method too large");
+      for (final Label label : pending) {
+        for (final int position : label.fixups) {
+          final int offset = offset(label.position - position);
+          code[position + 1] = (byte) (offset >> 8);
+          code[position + 2] = (byte) offset;
+        }
+      }
+      pending.clear();
+      final ByteArrayOutputStream method = new ByteArrayOutputStream();
+      try (final DataOutputStream out = new DataOutputStream(method)) {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1); // Attribute count
+        out.writeShort(utf8("Code"));
+        out.writeInt(12 + code.length);
+        out.writeShort(max_stack);
+        out.writeShort(max_locals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // Exception table
+        out.writeShort(0); // Attributes
+      } catch (final IOException e) {
+        throw new IllegalStateException(e);
+      }
+      methods.add(method.toByteArray());
+    }
+  }
+
+  private final String name, superclass;
+  private final ByteArrayOutputStream pool_bytes = new ByteArrayOutputStream();
+  private final DataOutputStream pool = new DataOutputStream(pool_bytes);
+  private final Map<String, Integer> pool_indices = new HashMap<>();
+  private int pool_count = 1;
+  private final List<byte[]> fields = new ArrayList<>(), methods = new ArrayList<>();
+  private final List<Label> pending = new ArrayList<>();
+
+  ClassFile(final String name, final String superclass) {
+    this.name = name;
+    this.superclass = superclass;
+  }
+
+  Label newLabel() {
+    final Label label = new Label();
+    pending.add(label);
+    return label;
+  }
+
+  private interface PoolWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private int constant(final String key, final int entries, final PoolWriter writer) {
+    final Integer existing = pool_indices.get(key);
+    if (existing != null) return existing;
+    try {
+      writer.write(pool);
+    } catch (final IOException e) {
+      throw new IllegalStateException(e);
+    }
+    final int index = pool_count;
+    pool_count += entries;
+    if (pool_count > 65535) throw new TooLarge("Constant pool too large");
+    pool_indices.put(key, index);
+    return index;
+  }
+
+  int utf8(final String value) {
+    return constant("U" + value, 1, out -> { out.writeByte(1); out.writeUTF(value); });
+  }
+
+  int classRef(final String internal_name) {
+    final int name_index = utf8(internal_name);
+    return constant("C" + internal_name, 1, out -> { out.writeByte(7); out.writeShort(name_index); });
+  }
+
+  int string(final String value) {
+    final int value_index = utf8(value);
+    return constant("S" + value, 1, out -> { out.writeByte(8); out.writeShort(value_index); });
+  }
+
+  int doubleConstant(final double value) {
+    return constant("D" + Double.doubleToRawLongBits(value), 2, out -> { out.writeByte(6); out.writeDouble(value); });
+  }
+
+  private int nameAndType(final String name, final String descriptor) {
+    final int name_index = utf8(name), descriptor_index = utf8(descriptor);
+    return constant("N" + name + ":" + descriptor, 1,
+      out -> { out.writeByte(12); out.writeShort(name_index); out.writeShort(descriptor_index); });
+  }
+
+  private int memberRef(final int tag, final String owner, final String name, final String descriptor) {
+    final int owner_index = classRef(owner), type_index = nameAndType(name, descriptor);
+    return constant("M" + tag + owner + "." + name + ":" + descriptor, 1,
+      out -> { out.writeByte(tag); out.writeShort(owner_index); out.writeShort(type_index); });
+  }
+
+  int fieldRef(final String owner, final String name, final String descriptor) {
+    return memberRef(9, owner, name, descriptor);
+  }
+
+  int methodRef(final String owner, final String name, final String descriptor) {
+    return memberRef(10, owner, name, descriptor);
+  }
+
+  int interfaceMethodRef(final String owner, final String name, final String descriptor) {
+    return memberRef(11, owner, name, descriptor);
+  }
+
+  void field(final int access, final String name, final String descriptor) {
+    final ByteArrayOutputStream field = new ByteArrayOutputStream();
+    try (final DataOutputStream out = new DataOutputStream(field)) {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(0);
+    } catch (final IOException e) {
+      throw new IllegalStateException(e);
+    }
+    fields.add(field.toByteArray());
+  }
+
+  Code method(final int access, final String name, final String descriptor) {
+    return new Code(access, utf8(name), utf8(descriptor), 1 + argumentSlots(descriptor));
+  }
+
+  byte[] toByteArray() {
+    final int this_index = classRef(name), super_index = classRef(superclass);
+    final ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try (final DataOutputStream out = new DataOutputStream(result)) {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(50);
+      out.writeShort(pool_count);
+      out.write(pool_bytes.toByteArray());
+      out.writeShort(ACC_FINAL | ACC_SUPER);
+      out.writeShort(this_index);
+      out.writeShort(super_index);
+      out.writeShort(0); // Interfaces
+      out.writeShort(fields.size());
+      for (final byte[] field : fields) out.write(field);
+      out.writeShort(methods.size());
+      for (final byte[] method : methods) out.write(method);
+      out.writeShort(0); // Attributes
+    } catch (final IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return result.toByteArray();
+  }
+
+  private static int slots(final String type) {
+    return type.equals("V") ? 0 : (type.equals("D") || type.equals("J")) ? 2 : 1;
+  }
+
+  private static String returnType(final String descriptor) {
+    return descriptor.substring(descriptor.indexOf(')') + 1);
+  }
+
+  private static int argumentSlots(final String descriptor) {
+    int slots = 0;
+    for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+      final char c = descriptor.charAt(i);
+      if (c == '[') continue;
+      final boolean array = descriptor.charAt(i - 1) == '[';
+      slots += (!array && (c == 'D' || c == 'J')) ? 2 : 1;
+      if (c == 'L') i = descriptor.indexOf(';', i);
+    }
+    return slots;
+  }
+}
@@ -0,0 +1,141 @@
+package com.craftinginterpreters.lox;
+
+// Superclass of the classes JitCompiler generates. One instance serves every closure and bound
+// method created from the same declaration, so the captures and receiver are passed in on each
+// call. The static helpers are what the generated code calls for anything beyond arithmetic and
+// control flow, and keep the interpreter's semantics and error messages.
+abstract class CompiledFunction {
+  abstract Object invoke(Interpreter interpreter, Object[] captures, LoxInstance receiver, Object[] arguments);
+
+  static double left(final Object operand, final Token operator) {
+    Interpreter.assertNumerical(operator, operand, "Left");
+    return (double) operand;
+  }
+
+  static double right(final Object operand, final Token operator) {
+    Interpreter.assertNumerical(operator, operand, "Right");
+    return (double) operand;
+  }
+
+  static double divide(final double dividend, final double divisor, final Token operator) {
+    if (divisor == 0.0)
+      throw new RuntimeError(operator, "Division by zero");
+    return dividend / divisor;
+  }
+
+  static Object add(final Object left, final Object right, final Token operator) {
+    if (left instanceof String || right instanceof String)
+      return Interpreter.stringify(left) + Interpreter.stringify(right);
+    if (left instanceof Double && right instanceof Double)
+      return (double) left + (double) right;
+    throw new RuntimeError(operator, "Operands to '+' must be two numbers or strings");
+  }
+
+  static Object checkInitialized(final Object value, final Token name) {
+    if (value == Environment.UNINITIALIZED)
+      throw new RuntimeError(name, "Accessing uninitialized variable '" + name.lexeme + "'.");
+    return value;
+  }
+
+  static Object assignGlobal(final Object value, final Interpreter interpreter, final int index, final Token name) {
+    interpreter.globals.assign(index, name, value);
+    return value;
+  }
+
+  // Calls with up to three arguments pass them directly, as in the interpreter
+  static Object call(final Object callee, final Object[] arguments, final Interpreter interpreter, final Token paren) {
+    return interpreter.call(callee, arguments, paren);
+  }
+
+  static Object call0(final Object callee, final Interpreter interpreter, final Token paren) {
+    return Interpreter.callable(callee, 0, paren).call0(interpreter, paren);
+  }
+
+  static Object call1(final Object callee, final Object a, final Interpreter interpreter, final Token paren) {
+    return Interpreter.callable(callee, 1, paren).call1(interpreter, a, paren);
+  }
+
+  static Object call2(final Object callee, final Object a, final Object b, final Interpreter interpreter, final Token paren) {
+    return Interpreter.callable(callee, 2, paren).call2(interpreter, a, b, paren);
+  }
+
+  static Object call3(final Object callee, final Object a, final Object b, final Object c,
+                      final Interpreter interpreter, final Token paren) {
+    return Interpreter.callable(callee, 3, paren).call3(interpreter, a, b, c, paren);
+  }
+
+  // Method calls: the method a call on object would invoke unbound, or null when the property
+  // is not a plain method, then what to call it on (or call), then the call itself
+  static LoxFunction method(final Object object, final Token name, final PropertyCache cache) {
+    return object instanceof LoxInstance ? ((LoxInstance) object).method(name, cache) : null;
+  }
+
+  static Object target(final Object object, final LoxFunction method, final Token name, final PropertyCache cache) {
+    return method != null ? object : Interpreter.get(object, name, cache);
+  }
+
+  static Object invoke(final LoxFunction method, final Object target, final Object[] arguments,
+                       final Interpreter interpreter, final Token paren) {
+    if (method == null) return call(target, arguments, interpreter, paren);
+    Interpreter.checkArity(method, arguments.length, paren);
+    return method.invoke(interpreter, (LoxInstance) target, arguments, paren);
+  }
+
+  static Object invoke0(final LoxFunction method, final Object target, final Interpreter interpreter, final Token paren) {
+    if (method == null) return call0(target, interpreter, paren);
+    Interpreter.checkArity(method, 0, paren);
+    return method.invoke0(interpreter, (LoxInstance) target, paren);
+  }
+
+  static Object invoke1(final LoxFunction method, final Object target, final Object a,
+                        final Interpreter interpreter, final Token paren) {
+    if (method == null) return call1(target, a, interpreter, paren);
+    Interpreter.checkArity(method, 1, paren);
+    return method.invoke1(interpreter, (LoxInstance) target, a, paren);
+  }
+
+  static Object invoke2(final LoxFunction method, final Object target, final Object a, final Object b,
+                        final Interpreter interpreter, final Token paren) {
+    if (method == null) return call2(target, a, b, interpreter, paren);
+    Interpreter.checkArity(method, 2, paren);
+    return method.invoke2(interpreter, (LoxInstance) target, a, b, paren);
+  }
+
+  static Object invoke3(final LoxFunction method, final Object target, final Object a, final Object b, final Object c,
+                        final Interpreter interpreter, final Token paren) {
+    if (method == null) return call3(target, a, b, c, interpreter, paren);
+    Interpreter.checkArity(method, 3, paren);
+    return method.invoke3(interpreter, (LoxInstance) target, a, b, c, paren);
+  }
+
+  // Returned calls leave a call to a Lox function to the trampoline in LoxFunction, as the
+  // interpreter does, and make any other call here
+  static Object tailCall(final Object callee, final Object[] arguments, final Interpreter interpreter, final Token paren) {
+    if (!(callee instanceof LoxFunction) || interpreter.depth <= Interpreter.TAIL_CALL_DEPTH)
+      return call(callee, arguments, interpreter, paren);
+    final LoxFunction function = (LoxFunction) callee;
+    Interpreter.checkArity(function, arguments.length, paren);
+    return interpreter.tailCall(function, function.receiver, arguments, paren);
+  }
+
+  static Object tailInvoke(final LoxFunction method, final Object target, final Object[] arguments,
+                           final Interpreter interpreter, final Token paren) {
+    if (method == null) return tailCall(target, arguments, interpreter, paren);
+    Interpreter.checkArity(method, arguments.length, paren);
+    if (interpreter.depth <= Interpreter.TAIL_CALL_DEPTH)
+      return method.invoke(interpreter, (LoxInstance) target, arguments, paren);
+    return interpreter.tailCall(method, (LoxInstance) target, arguments, paren);
+  }
+
+  static LoxInstance instance(final Object object, final Token name) {
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(name, "Only instances have fields.");
+    }
+    return (LoxInstance) object;
+  }
+
+  static Object set(final LoxInstance object, final Object value, final Token name, final PropertyCache cache) {
+    object.set(name, value, cache);
+    return value;
+  }
+}
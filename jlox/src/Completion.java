@@ -0,0 +1,11 @@
+package com.craftinginterpreters.lox;
+
+// How a statement finished executing. A RETURN leaves its value in Interpreter.returned, and a
+// TAIL_CALL leaves the call it returns in Interpreter.tail_function and the fields after it.
+enum Completion {
+  NORMAL,
+  BREAK,
+  CONTINUE,
+  RETURN,
+  TAIL_CALL
+}
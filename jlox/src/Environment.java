@@ -1,25 +1,41 @@
-
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class Environment {
-  class Value {
-    public boolean assigned;
-    public Object value;
+  // Stored in a slot whose variable has been declared but not yet assigned
+  static final Object UNINITIALIZED = new Object();
+
+  // Holds a variable that is captured by a closure and can change after being captured
+  static class Box {
+    Object value;
 
-    Value(boolean assigned, Object value) {
-      this.assigned = assigned;
+    Box(final Object value) {
       this.value = value;
     }
   }
 
   final Environment parent;
-  private final Map<String, Value> values = new HashMap<>();
+  private Object[] slots;
+  private int size = 0;
+
+  // The top-level environment holds no slots: globals are kept in Globals
+  Environment() {
+    this.parent = null;
+    this.slots = null;
+  }
 
-  Environment() { parent = null; }
-  Environment(Environment parent) { this.parent = parent; }
+  Environment(final Environment parent) {
+    this.parent = parent;
+    this.slots = new Object[4];
+    Metrics.environments_allocated.increment();
+  }
+
+  // Forgets every local, so the environment can be used again for the same scope
+  Environment clear() {
+    size = 0;
+    return this;
+  }
 
   Environment ancestor(final int distance) {
     Environment environment = this;
@@ -29,47 +45,18 @@ class Environment {
     return environment;
   }
 
-  void define(final String name, final boolean initialized, final Object value) {
-    values.put(name, new Value(initialized, value));
+  // Locals are defined in the same order the resolver handed out their slots
+  int define(final Object value) {
+    if (size == slots.length) slots = Arrays.copyOf(slots, 2 * size);
+    slots[size] = value;
+    return size++;
   }
 
-  Object get(final Token name) {
-    if (values.containsKey(name.lexeme)) {
-      final Value value = values.get(name.lexeme);
-      if (!value.assigned)
-        throw new RuntimeError(name, "Accessing uninitialized variable '" + name.lexeme + "'.");
-      return value.value;
-    } else if (parent != null) {
-      return parent.get(name);
-    } else {
-      throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
-    }
+  Object getAt(final int distance, final int slot) {
+    return ancestor(distance).slots[slot];
   }
 
-  Object getAt(final int distance, final String name) {
-    return getAt(distance, new Token(TokenType.IDENTIFIER, name));
-  }
-
-  Object getAt(final int distance, final Token name) {
-    final Value value = ancestor(distance).values.get(name.lexeme);
-    if (value == null)
-      throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'");
-    if (!value.assigned)
-      throw new RuntimeError(name, "Accessing uninitialized variable '" + name.lexeme + "'.");
-    return value.value;
-  }
-
-  void assignAt(final int distance, final Token name, final Object value) {
-    ancestor(distance).values.put(name.lexeme, new Value(true, value));
-  }
-
-  void assign(final Token name, final Object value) {
-    if (values.containsKey(name.lexeme)) {
-      values.put(name.lexeme, new Value(true, value));
-    } else if (parent != null) {
-      parent.assign(name, value);
-    } else {
-      throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
-    }
+  void assignAt(final int distance, final int slot, final Object value) {
+    ancestor(distance).slots[slot] = value;
   }
 }
@@ -35,6 +35,8 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    Specialization specialization = Specialization.UNINITIALIZED;
   }
 
   static class Grouping extends Expr {
@@ -121,6 +123,12 @@ abstract class Expr {
     }
 
     final Token name;
+
+    int depth = -1;
+    int slot = -1;
+    boolean is_global = true;
+    boolean is_upvalue = false;
+    boolean is_boxed = false;
   }
 
   static class Assign extends Expr {
@@ -136,6 +144,12 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+
+    int depth = -1;
+    int slot = -1;
+    boolean is_global = true;
+    boolean is_upvalue = false;
+    boolean is_boxed = false;
   }
 
   static class Logical extends Expr {
@@ -170,6 +184,9 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+
+    PropertyCache cache = new PropertyCache();
+    Expr inlined = null;
   }
 
   static class Get extends Expr {
@@ -185,6 +202,8 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+
+    PropertyCache cache = new PropertyCache();
   }
 
   static class Set extends Expr {
@@ -202,6 +221,8 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+
+    PropertyCache cache = new PropertyCache();
   }
 
   static class This extends Expr {
@@ -215,6 +236,10 @@ abstract class Expr {
     }
 
     final Token keyword;
+
+    int depth = -1;
+    int slot = -1;
+    boolean is_upvalue = false;
   }
 
   static class Super extends Expr {
@@ -230,6 +255,11 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+
+    int depth = -1;
+    int slot = -1;
+    boolean is_upvalue = false;
+    This receiver = null;
   }
 
   abstract <R> R accept(final Visitor<R> visitor);
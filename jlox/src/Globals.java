@@ -0,0 +1,44 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Global variables live in cells whose indices the resolver binds into each reference,
+// so a global read is an array load rather than a lookup by name.
+class Globals {
+  // Stored in a cell that has been referenced but never defined
+  static final Object UNDEFINED = new Object();
+
+  private final Map<String, Integer> indices = new HashMap<>();
+  private Object[] values = new Object[64];
+
+  int indexOf(final String name) {
+    final Integer index = indices.get(name);
+    if (index != null) return index;
+    final int size = indices.size();
+    if (size == values.length) values = Arrays.copyOf(values, 2 * size);
+    values[size] = UNDEFINED;
+    indices.put(name, size);
+    return size;
+  }
+
+  void define(final String name, final Object value) {
+    values[indexOf(name)] = value;
+  }
+
+  Object get(final int index, final Token name) {
+    final Object value = values[index];
+    if (value == UNDEFINED)
+      throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    if (value == Environment.UNINITIALIZED)
+      throw new RuntimeError(name, "Accessing uninitialized variable '" + name.lexeme + "'.");
+    return value;
+  }
+
+  void assign(final int index, final Token name, final Object value) {
+    if (values[index] == UNDEFINED)
+      throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    values[index] = value;
+  }
+}
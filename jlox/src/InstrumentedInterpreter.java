@@ -0,0 +1,138 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The interpreter for --line-counts: counts how often the statements on each line ran and the
+// bytes they allocated themselves (not counting the statements nested in them), and writes a
+// listing of the source annotated with both, in the style of gcov. Being a subclass keeps the
+// plain interpreter free of any bookkeeping. Everything must run here to be counted, so the JIT
+// is off and the VM cannot be used.
+class InstrumentedInterpreter extends Interpreter {
+  private static final com.sun.management.ThreadMXBean threads =
+    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private final Map<Stmt, Integer> lines = new IdentityHashMap<>();
+  // Lines with a statement on them, so that lines that never ran can be told apart
+  private final BitSet executable = new BitSet();
+  private long[] counts = new long[64], allocated = new long[64];
+  // Bytes allocated by the statements that have finished so far, nested ones included
+  private long finished = 0;
+
+  @Override
+  public void interpret(final List<Stmt> statements) {
+    for (final Stmt statement : statements) mark(statement);
+    super.interpret(statements);
+  }
+
+  @Override
+  Completion execute(final Stmt stmt) {
+    if (stmt == null || stmt instanceof Stmt.Block) return super.execute(stmt);
+    final int line = line(stmt);
+    if (line >= counts.length) {
+      counts = Arrays.copyOf(counts, Math.max(2 * counts.length, line + 1));
+      allocated = Arrays.copyOf(allocated, counts.length);
+    }
+    counts[line]++;
+    final long thread = Thread.currentThread().getId();
+    final long start = threads.getThreadAllocatedBytes(thread), finished_before = finished;
+    try {
+      return super.execute(stmt);
+    } finally {
+      final long total = threads.getThreadAllocatedBytes(thread) - start;
+      allocated[line] += total - (finished - finished_before);
+      finished = finished_before + total;
+    }
+  }
+
+  void report(final String output, final String script, final String[] source_lines) throws IOException {
+    final List<String> listing = new ArrayList<>();
+    listing.add(String.format("%9s:%12s:%5d:Source:%s", "-", "-", 0, script));
+    listing.add(String.format("%9s:%12s:%5d:Columns:runs:bytes allocated:line:source", "-", "-", 0));
+    for (int line = 1; line <= source_lines.length; line++) {
+      final long count = line < counts.length ? counts[line] : 0;
+      final String runs = !executable.get(line) ? "-" : count == 0 ? "#####" : Long.toString(count);
+      final String bytes = !executable.get(line) || count == 0 ? "-" : Long.toString(allocated[line]);
+      listing.add(String.format("%9s:%12s:%5d:%s", runs, bytes, line, source_lines[line - 1]));
+    }
+    Files.write(Paths.get(output), listing, StandardCharsets.UTF_8);
+  }
+
+  private void mark(final Stmt stmt) {
+    if (stmt == null) return;
+    if (!(stmt instanceof Stmt.Block)) {
+      final int line = line(stmt);
+      if (line > 0) executable.set(line);
+    }
+    if (stmt instanceof Stmt.Block) {
+      for (final Stmt statement : ((Stmt.Block) stmt).statements) mark(statement);
+    } else if (stmt instanceof Stmt.If) {
+      mark(((Stmt.If) stmt).true_branch);
+      mark(((Stmt.If) stmt).false_branch);
+    } else if (stmt instanceof Stmt.While) {
+      mark(((Stmt.While) stmt).body);
+    } else if (stmt instanceof Stmt.Function) {
+      for (final Stmt statement : ((Stmt.Function) stmt).body) mark(statement);
+    } else if (stmt instanceof Stmt.Class) {
+      // Methods are not executed as statements, only their bodies are
+      for (final Stmt.Function method : ((Stmt.Class) stmt).methods) {
+        for (final Stmt statement : method.body) mark(statement);
+      }
+    }
+  }
+
+  private int line(final Stmt stmt) {
+    final Integer cached = lines.get(stmt);
+    if (cached != null) return cached;
+    final int line;
+    if (stmt instanceof Stmt.Expression) line = line(((Stmt.Expression) stmt).expression);
+    else if (stmt instanceof Stmt.Var) line = line(((Stmt.Var) stmt).name);
+    else if (stmt instanceof Stmt.If) line = line(((Stmt.If) stmt).condition);
+    else if (stmt instanceof Stmt.While) line = line(((Stmt.While) stmt).condition);
+    else if (stmt instanceof Stmt.Function) line = line(((Stmt.Function) stmt).name);
+    else if (stmt instanceof Stmt.Return) line = line(((Stmt.Return) stmt).keyword);
+    else if (stmt instanceof Stmt.Break) line = line(((Stmt.Break) stmt).keyword);
+    else if (stmt instanceof Stmt.Continue) line = line(((Stmt.Continue) stmt).keyword);
+    else if (stmt instanceof Stmt.Class) line = line(((Stmt.Class) stmt).name);
+    else line = 0;
+    lines.put(stmt, Math.max(line, 0));
+    return Math.max(line, 0);
+  }
+
+  // The line an expression starts on, as near as its tokens tell; 0 if it has none (a literal)
+  private static int line(final Expr expr) {
+    if (expr instanceof Expr.Binary) return line(((Expr.Binary) expr).left, ((Expr.Binary) expr).operator);
+    if (expr instanceof Expr.Grouping) return line(((Expr.Grouping) expr).expression);
+    if (expr instanceof Expr.Unary) return line(((Expr.Unary) expr).operator);
+    if (expr instanceof Expr.Comma) return line(((Expr.Comma) expr).left);
+    if (expr instanceof Expr.Ternary) return line(((Expr.Ternary) expr).condition);
+    if (expr instanceof Expr.Variable) return line(((Expr.Variable) expr).name);
+    if (expr instanceof Expr.Assign) return line(((Expr.Assign) expr).name);
+    if (expr instanceof Expr.Logical) return line(((Expr.Logical) expr).left, ((Expr.Logical) expr).operator);
+    if (expr instanceof Expr.Call) return line(((Expr.Call) expr).callee, ((Expr.Call) expr).paren);
+    if (expr instanceof Expr.Get) return line(((Expr.Get) expr).object, ((Expr.Get) expr).name);
+    if (expr instanceof Expr.Set) return line(((Expr.Set) expr).object, ((Expr.Set) expr).name);
+    if (expr instanceof Expr.This) return line(((Expr.This) expr).keyword);
+    if (expr instanceof Expr.Super) return line(((Expr.Super) expr).keyword);
+    return 0;
+  }
+
+  private static int line(final Expr first, final Token fallback) {
+    final int line = line(first);
+    return line > 0 ? line : line(fallback);
+  }
+
+  // Statements the parser makes up, such as a for loop's increment, may have no tokens
+  private static int line(final Token token) {
+    return token == null ? 0 : token.line;
+  }
+}
@@ -4,18 +4,37 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
-import javafx.util.Pair;
 import java.util.Scanner;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-  final Environment globals = new Environment();
-  private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>();
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
+  final Globals globals = new Globals();
+  final VM vm = new VM(this);
+  private final Environment global_environment = new Environment();
+  private Environment environment = global_environment;
+  private Object[] captures = null;
+  // Arithmetic leaves its result here and returns UNBOXED in its place. Operators and conditions
+  // read it directly; evaluate boxes it for everything else.
+  private static final Object UNBOXED = new Object();
+  private double unboxed;
+  // Returned in place of a value by a function that left a tail call to LoxFunction's trampoline
+  static final Object TAIL_CALL = new Object();
+  // Set by a return statement, which completes with Completion.RETURN
+  Object returned = null;
+  // Lox functions running on the Java stack. Calls are only left to the trampoline once they are
+  // nested this deep, as making them directly is faster.
+  int depth = 0;
+  static final int TAIL_CALL_DEPTH = 64;
+  // The call a function returning TAIL_CALL left to be made
+  LoxFunction tail_function = null;
+  LoxInstance tail_receiver = null;
+  Object[] tail_arguments = null;
+  Token tail_paren = null;
   final java.util.Scanner system_in = new Scanner(System.in);
 
   Interpreter() {
+    Metrics.register();
     for (final LoxNative native_func : LoxNative.getNativeFunctions()) {
-      globals.define(native_func.name, true, native_func);
+      globals.define(native_func.name, native_func);
     }
   }
 
@@ -30,47 +49,69 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
 
   public Object evaluate(final Expr expr) {
-    return (expr == null) ? null : expr.accept(this);
+    if (expr == null) return null;
+    final Object value = expr.accept(this);
+    return value == UNBOXED ? (Object) unboxed : value;
   }
 
-  private void execute(final Stmt stmt) {
-    if (stmt != null) stmt.accept(this);
+  Completion execute(final Stmt stmt) {
+    return stmt == null ? Completion.NORMAL : stmt.accept(this);
   }
 
-  public void resolve(final Expr expr, final int depth) {
-    locals.put(expr, depth);
+  // Returns the slot the variable was given, or -1 if it was defined as a global
+  private int declare(final Token name, final boolean is_boxed, final Object value) {
+    if (environment == global_environment) {
+      globals.define(name.lexeme, value);
+      return -1;
+    }
+    return environment.define(is_boxed ? new Environment.Box(value) : value);
   }
 
-  private Object lookup(final Token name, final Expr expr) {
-    final Integer distance = locals.get(expr);
-    if (distance != null) {
-      return environment.getAt(distance, name);
-    } else {
-      return globals.get(name);
-    }
+  // Stores the value of a variable that was declared before its value could be computed
+  private void define(final Token name, final int slot, final boolean is_boxed, final Object value) {
+    if (slot < 0)
+      globals.define(name.lexeme, value);
+    else if (is_boxed)
+      ((Environment.Box) environment.getAt(0, slot)).value = value;
+    else
+      environment.assignAt(0, slot, value);
   }
 
-  private void assign(final Token name, final Expr expr, final Object value) {
-    final Integer distance = locals.get(expr);
-    if (distance != null) {
-      environment.assignAt(distance, name, value);
-    } else {
-      globals.assign(name, value);
-    }
+  // Copies the variables a function uses from its enclosing scopes when the function is created
+  private Object[] capture(final Stmt.Function declaration) {
+    final int[] depths = declaration.capture_depths, slots = declaration.capture_slots;
+    final Object[] result = new Object[depths.length];
+    for (int i = 0; i < depths.length; i++)
+      result[i] = depths[i] < 0 ? captures[slots[i]] : environment.getAt(depths[i], slots[i]);
+    return result;
+  }
+
+  private Object load(final Token name, final int depth, final int slot, final boolean is_upvalue, final boolean is_boxed) {
+    Object value = is_upvalue ? captures[slot] : environment.getAt(depth, slot);
+    if (is_boxed) value = ((Environment.Box) value).value;
+    if (value == Environment.UNINITIALIZED)
+      throw new RuntimeError(name, "Accessing uninitialized variable '" + name.lexeme + "'.");
+    return value;
   }
 
   public static String getClassName(final Object object) {
     return object == null ? "<null>" : object.getClass().getName();
   }
 
-  public void executeBlock(final List<Stmt> statements, final Environment environment) {
+  public Completion executeBlock(final List<Stmt> statements, final Environment environment, final Object[] captures) {
     final Environment previous = this.environment;
+    final Object[] previous_captures = this.captures;
     try {
       this.environment = environment;
-      for (final Stmt statement : statements)
-        execute(statement);
+      this.captures = captures;
+      for (final Stmt statement : statements) {
+        final Completion completion = execute(statement);
+        if (completion != Completion.NORMAL) return completion;
+      }
+      return Completion.NORMAL;
     } finally {
       this.environment = previous;
+      this.captures = previous_captures;
     }
   }
 
@@ -88,7 +129,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return true;
   }
 
-  private boolean isEqual(final Object a, final Object b) {
+  static boolean isEqual(final Object a, final Object b) {
     if (a == null && b == null) return true;
     if (a == null || b == null) return false;
     if (a instanceof Boolean && b instanceof Boolean)
@@ -100,12 +141,31 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return false;
   }
 
-  private void assertNumerical(final Token operator, final Object operand, final String side) {
+  static void assertNumerical(final Token operator, final Object operand, final String side) {
     if (!(operand instanceof Double))
       throw new RuntimeError(operator,
         side + " operand to '" + operator.lexeme + "' must be numerical, got " + getClassName(operand) + " instead.");
   }
 
+  private static boolean isNumber(final Object operand) {
+    return operand == UNBOXED || operand instanceof Double;
+  }
+
+  private double toNumber(final Token operator, final Object operand, final double number, final String side) {
+    if (operand == UNBOXED) return number;
+    assertNumerical(operator, operand, side);
+    return (double) operand;
+  }
+
+  private static Object box(final Object operand, final double number) {
+    return operand == UNBOXED ? (Object) number : operand;
+  }
+
+  private boolean evaluateBoolean(final Expr expr) {
+    final Object value = expr.accept(this);
+    return value == UNBOXED || isTruthy(value);
+  }
+
   @Override
   public Object visitLiteralExpr(final Expr.Literal expr) {
     return expr.value;
@@ -113,68 +173,170 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitGroupingExpr(final Expr.Grouping expr) {
-    return evaluate(expr.expression);
+    return expr.expression.accept(this);
   }
 
+  // Operands are visited directly rather than through evaluate, so nested arithmetic stays unboxed
+  // and costs no extra Java frames
   @Override
   public Object visitUnaryExpr(final Expr.Unary expr) {
-    final Object right = evaluate(expr.right);
+    final Object right = expr.right.accept(this);
     switch (expr.operator.type) {
       case MINUS:
-        assertNumerical(expr.operator, right, "Right");
-        return -(double)right;
+        unboxed = -toNumber(expr.operator, right, unboxed, "Right");
+        return UNBOXED;
       case BANG:
-        return !isTruthy(right);
+        return !(right == UNBOXED || isTruthy(right));
     }
     return null;
   }
 
   @Override
   public Object visitBinaryExpr(final Expr.Binary expr) {
-    final Object left = evaluate(expr.left), right = evaluate(expr.right);
-    switch (expr.operator.type) {
+    final Object left = expr.left.accept(this);
+    final double left_number = unboxed;
+    final Object right = expr.right.accept(this);
+    final double right_number = unboxed;
+    if (expr.specialization == Specialization.UNINITIALIZED)
+      expr.specialization = specialize(expr.operator.type, left, right);
+    // A specialized node only checks that its operands still have the types it specialized on
+    switch (expr.specialization) {
+      case GENERIC:
+        return generic(expr.operator, left, left_number, right, right_number);
+      case ADD_NUMBERS:
+        if (isNumber(left) && isNumber(right)) {
+          unboxed = number(left, left_number) + number(right, right_number);
+          return UNBOXED;
+        }
+        break;
+      case SUBTRACT_NUMBERS:
+        if (isNumber(left) && isNumber(right)) {
+          unboxed = number(left, left_number) - number(right, right_number);
+          return UNBOXED;
+        }
+        break;
+      case MULTIPLY_NUMBERS:
+        if (isNumber(left) && isNumber(right)) {
+          unboxed = number(left, left_number) * number(right, right_number);
+          return UNBOXED;
+        }
+        break;
+      case DIVIDE_NUMBERS:
+        if (isNumber(left) && isNumber(right)) {
+          final double divisor = number(right, right_number);
+          if (divisor == 0.0)
+            throw new RuntimeError(expr.operator, "Division by zero");
+          unboxed = number(left, left_number) / divisor;
+          return UNBOXED;
+        }
+        break;
+      case GREATER_NUMBERS:
+        if (isNumber(left) && isNumber(right)) return number(left, left_number) > number(right, right_number);
+        break;
+      case GREATER_EQUAL_NUMBERS:
+        if (isNumber(left) && isNumber(right)) return number(left, left_number) >= number(right, right_number);
+        break;
+      case LESS_NUMBERS:
+        if (isNumber(left) && isNumber(right)) return number(left, left_number) < number(right, right_number);
+        break;
+      case LESS_EQUAL_NUMBERS:
+        if (isNumber(left) && isNumber(right)) return number(left, left_number) <= number(right, right_number);
+        break;
+      case EQUAL_NUMBERS:
+        if (isNumber(left) && isNumber(right)) return number(left, left_number) == number(right, right_number);
+        break;
+      case NOT_EQUAL_NUMBERS:
+        if (isNumber(left) && isNumber(right)) return number(left, left_number) != number(right, right_number);
+        break;
+      case CONCAT_STRINGS:
+        if (left instanceof String && right instanceof String) return ((String) left).concat((String) right);
+        break;
+      case EQUAL_STRINGS:
+        if (left instanceof String && right instanceof String) return left.equals(right);
+        break;
+      case NOT_EQUAL_STRINGS:
+        if (left instanceof String && right instanceof String) return !left.equals(right);
+        break;
+    }
+    expr.specialization = Specialization.GENERIC;
+    return generic(expr.operator, left, left_number, right, right_number);
+  }
+
+  private static Specialization specialize(final TokenType operator, final Object left, final Object right) {
+    if (isNumber(left) && isNumber(right)) {
+      switch (operator) {
+        case PLUS: return Specialization.ADD_NUMBERS;
+        case MINUS: return Specialization.SUBTRACT_NUMBERS;
+        case STAR: return Specialization.MULTIPLY_NUMBERS;
+        case SLASH: return Specialization.DIVIDE_NUMBERS;
+        case GREATER: return Specialization.GREATER_NUMBERS;
+        case GREATER_EQUAL: return Specialization.GREATER_EQUAL_NUMBERS;
+        case LESS: return Specialization.LESS_NUMBERS;
+        case LESS_EQUAL: return Specialization.LESS_EQUAL_NUMBERS;
+        case EQUAL_EQUAL: return Specialization.EQUAL_NUMBERS;
+        case BANG_EQUAL: return Specialization.NOT_EQUAL_NUMBERS;
+      }
+    } else if (left instanceof String && right instanceof String) {
+      switch (operator) {
+        case PLUS: return Specialization.CONCAT_STRINGS;
+        case EQUAL_EQUAL: return Specialization.EQUAL_STRINGS;
+        case BANG_EQUAL: return Specialization.NOT_EQUAL_STRINGS;
+      }
+    }
+    return Specialization.GENERIC;
+  }
+
+  // The value of an operand known to be a number, whether or not it was left unboxed
+  private static double number(final Object operand, final double value) {
+    return operand == UNBOXED ? value : (double) operand;
+  }
+
+  private Object generic(final Token operator, final Object left, final double left_number, final Object right, final double right_number) {
+    switch (operator.type) {
       case PLUS:
         if (left instanceof String || right instanceof String) {
-          return stringify(left) + stringify(right);
-        } else if (left instanceof Double && right instanceof Double) {
-          return (double) left + (double) right;
+          return stringify(box(left, left_number)) + stringify(box(right, right_number));
+        } else if (isNumber(left) && isNumber(right)) {
+          unboxed = toNumber(operator, left, left_number, "Left") + toNumber(operator, right, right_number, "Right");
+          return UNBOXED;
         }
-        throw new RuntimeError(expr.operator, "Operands to '+' must be two numbers or strings");
+        throw new RuntimeError(operator, "Operands to '+' must be two numbers or strings");
       case MINUS:
-        assertNumerical(expr.operator, left, "Left"); assertNumerical(expr.operator, right, "Right");
-        return (double) left - (double) right;
-      case SLASH:
-        assertNumerical(expr.operator, left, "Left"); assertNumerical(expr.operator, right, "Right");
-        if ((double) right == 0.0)
-          throw new RuntimeError(expr.operator, "Division by zero");
-        return (double) left / (double) right;
+        unboxed = toNumber(operator, left, left_number, "Left") - toNumber(operator, right, right_number, "Right");
+        return UNBOXED;
+      case SLASH: {
+        final double dividend = toNumber(operator, left, left_number, "Left");
+        final double divisor = toNumber(operator, right, right_number, "Right");
+        if (divisor == 0.0)
+          throw new RuntimeError(operator, "Division by zero");
+        unboxed = dividend / divisor;
+        return UNBOXED;
+      }
       case STAR:
-        assertNumerical(expr.operator, left, "Left"); assertNumerical(expr.operator, right, "Right");
-        return (double) left * (double) right;
+        unboxed = toNumber(operator, left, left_number, "Left") * toNumber(operator, right, right_number, "Right");
+        return UNBOXED;
       case GREATER:
-        assertNumerical(expr.operator, left, "Left"); assertNumerical(expr.operator, right, "Right");
-        return (double) left > (double) right;
+        return toNumber(operator, left, left_number, "Left") > toNumber(operator, right, right_number, "Right");
       case GREATER_EQUAL:
-        assertNumerical(expr.operator, left, "Left"); assertNumerical(expr.operator, right, "Right");
-        return (double) left >= (double) right;
+        return toNumber(operator, left, left_number, "Left") >= toNumber(operator, right, right_number, "Right");
       case LESS:
-        assertNumerical(expr.operator, left, "Left"); assertNumerical(expr.operator, right, "Right");
-        return (double) left < (double) right;
+        return toNumber(operator, left, left_number, "Left") < toNumber(operator, right, right_number, "Right");
       case LESS_EQUAL:
-        assertNumerical(expr.operator, left, "Left"); assertNumerical(expr.operator, right, "Right");
-        return (double) left <= (double) right;
+        return toNumber(operator, left, left_number, "Left") <= toNumber(operator, right, right_number, "Right");
       case EQUAL_EQUAL:
-        return isEqual(left, right);
-      case BANG_EQUAL:
-        return !isEqual(left, right);
+      case BANG_EQUAL: {
+        final boolean equal = isNumber(left) && isNumber(right)
+          ? toNumber(operator, left, left_number, "Left") == toNumber(operator, right, right_number, "Right")
+          : isEqual(left, right);
+        return operator.type == TokenType.EQUAL_EQUAL ? equal : !equal;
+      }
     }
     return null;
   }
 
   @Override
   public Object visitTernaryExpr(final Expr.Ternary expr) {
-    final Object condition = evaluate(expr.condition);
-    return isTruthy(condition) ? evaluate(expr.true_expr) : evaluate(expr.false_expr);
+    return evaluateBoolean(expr.condition) ? evaluate(expr.true_expr) : evaluate(expr.false_expr);
   }
 
   @Override
@@ -185,13 +347,19 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitVariableExpr(final Expr.Variable expr) {
-    return lookup(expr.name, expr);
+    if (expr.is_global) return globals.get(expr.slot, expr.name);
+    return load(expr.name, expr.depth, expr.slot, expr.is_upvalue, expr.is_boxed);
   }
 
   @Override
   public Object visitAssignExpr(final Expr.Assign expr) {
     final Object value = evaluate(expr.value);
-    assign(expr.name, expr, value);
+    if (expr.is_global)
+      globals.assign(expr.slot, expr.name, value);
+    else if (expr.is_boxed) // Captured variables that are assigned to are always boxed
+      ((Environment.Box) (expr.is_upvalue ? captures[expr.slot] : environment.getAt(expr.depth, expr.slot))).value = value;
+    else
+      environment.assignAt(expr.depth, expr.slot, value);
     return value;
   }
 
@@ -208,27 +376,121 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitCallExpr(final Expr.Call expr) {
-    final Object callee = evaluate(expr.callee);
-    final List<Object> arguments = new ArrayList<>();
-    for (final Expr argument : expr.arguments) {
-      arguments.add(evaluate(argument));
+    if (expr.inlined != null) return inline(expr);
+    // Method calls look the method up through the call site's own cache, and call it on the
+    // receiver directly instead of binding it
+    if (expr.callee instanceof Expr.Get) {
+      final Expr.Get get = (Expr.Get) expr.callee;
+      final Object object = evaluate(get.object);
+      final LoxFunction method = object instanceof LoxInstance
+        ? ((LoxInstance) object).method(get.name, expr.cache) : null;
+      if (method != null) return invoke(method, (LoxInstance) object, expr);
+      return call(get(object, get.name, expr.cache), expr);
     }
+    return call(evaluate(expr.callee), expr);
+  }
+
+  // A call the optimizer inlined evaluates the function's returned expression, which reads the
+  // parameters from the captures
+  private Object inline(final Expr.Call expr) {
+    final Object[] arguments = evaluateArguments(expr);
+    final Object[] previous_captures = captures;
+    captures = arguments;
+    try {
+      return evaluate(expr.inlined);
+    } finally {
+      captures = previous_captures;
+    }
+  }
+
+  // Calls with up to three arguments pass them directly rather than in an array
+  private Object call(final Object callee, final Expr.Call expr) {
+    final List<Expr> arguments = expr.arguments;
+    switch (arguments.size()) {
+      case 0:
+        return callable(callee, 0, expr.paren).call0(this, expr.paren);
+      case 1: {
+        final Object a = evaluate(arguments.get(0));
+        return callable(callee, 1, expr.paren).call1(this, a, expr.paren);
+      }
+      case 2: {
+        final Object a = evaluate(arguments.get(0)), b = evaluate(arguments.get(1));
+        return callable(callee, 2, expr.paren).call2(this, a, b, expr.paren);
+      }
+      case 3: {
+        final Object a = evaluate(arguments.get(0)), b = evaluate(arguments.get(1)), c = evaluate(arguments.get(2));
+        return callable(callee, 3, expr.paren).call3(this, a, b, c, expr.paren);
+      }
+      default:
+        return call(callee, evaluateArguments(expr), expr.paren);
+    }
+  }
+
+  private Object invoke(final LoxFunction method, final LoxInstance receiver, final Expr.Call expr) {
+    final List<Expr> arguments = expr.arguments;
+    switch (arguments.size()) {
+      case 0:
+        checkArity(method, 0, expr.paren);
+        return method.invoke0(this, receiver, expr.paren);
+      case 1: {
+        final Object a = evaluate(arguments.get(0));
+        checkArity(method, 1, expr.paren);
+        return method.invoke1(this, receiver, a, expr.paren);
+      }
+      case 2: {
+        final Object a = evaluate(arguments.get(0)), b = evaluate(arguments.get(1));
+        checkArity(method, 2, expr.paren);
+        return method.invoke2(this, receiver, a, b, expr.paren);
+      }
+      case 3: {
+        final Object a = evaluate(arguments.get(0)), b = evaluate(arguments.get(1)), c = evaluate(arguments.get(2));
+        checkArity(method, 3, expr.paren);
+        return method.invoke3(this, receiver, a, b, c, expr.paren);
+      }
+      default: {
+        final Object[] values = evaluateArguments(expr);
+        checkArity(method, values.length, expr.paren);
+        return method.invoke(this, receiver, values, expr.paren);
+      }
+    }
+  }
+
+  private Object[] evaluateArguments(final Expr.Call expr) {
+    final Object[] arguments = new Object[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = evaluate(expr.arguments.get(i));
+    }
+    return arguments;
+  }
+
+  Object call(final Object callee, final Object[] arguments, final Token paren) {
+    return callable(callee, arguments.length, paren).call(this, arguments, paren);
+  }
+
+  static LoxCallable callable(final Object callee, final int argument_count, final Token paren) {
     if (!(callee instanceof LoxCallable))
-      throw new RuntimeError(expr.paren, "Expression not callable");
+      throw new RuntimeError(paren, "Expression not callable");
     final LoxCallable function = (LoxCallable) callee;
-    if (arguments.size() != function.arity()) {
-      throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+    checkArity(function, argument_count, paren);
+    return function;
+  }
+
+  static void checkArity(final LoxCallable function, final int argument_count, final Token paren) {
+    if (argument_count != function.arity()) {
+      throw new RuntimeError(paren, "Expected " + function.arity() + " arguments but got " + argument_count + ".");
     }
-    return function.call(this, arguments, expr.paren);
   }
 
   @Override
   public Object visitGetExpr(final Expr.Get expr) {
-    final Object object = evaluate(expr.object);
+    return get(evaluate(expr.object), expr.name, expr.cache);
+  }
+
+  static Object get(final Object object, final Token name, final PropertyCache cache) {
     if (!(object instanceof LoxInstance)) {
-      throw new RuntimeError(expr.name, "Only instances have properties.");
+      throw new RuntimeError(name, "Only instances have properties.");
     }
-    return ((LoxInstance) object).get(expr.name);
+    return ((LoxInstance) object).get(name, cache);
   }
 
   @Override
@@ -238,134 +500,179 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       throw new RuntimeError(expr.name, "Only instances have fields.");
     }
     final Object value = evaluate(expr.value);
-    ((LoxInstance) object).set(expr.name, value);
+    ((LoxInstance) object).set(expr.name, value, expr.cache);
     return value;
   }
 
   @Override
   public Object visitThisExpr(final Expr.This expr) {
-    return lookup(expr.keyword, expr);
+    return expr.is_upvalue ? captures[expr.slot] : environment.getAt(expr.depth, expr.slot);
   }
 
   @Override
   public Object visitSuperExpr(final Expr.Super expr) {
-    final int distance = locals.get(expr);
-    final LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
-    final LoxInstance object = (LoxInstance)environment.getAt(distance - 1, "this");
-    if (expr.method.lexeme.equals("__class__")) return superclass;
-    final LoxFunction method = superclass.findMethod(expr.method.lexeme);
+    final LoxClass superclass = (LoxClass)(expr.is_upvalue ? captures[expr.slot] : environment.getAt(expr.depth, expr.slot));
+    return superMethod(superclass, (LoxInstance)visitThisExpr(expr.receiver), expr.method);
+  }
+
+  Object superMethod(final LoxClass superclass, final LoxInstance object, final Token name) {
+    if (name.lexeme.equals("__class__")) return superclass;
+    final LoxFunction method = superclass.findMethod(name.lexeme);
     if (method == null) {
-      throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
+      throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
     if (method.type == LoxFunctionType.INSTANCE_GETTER || method.type == LoxFunctionType.STATIC_GETTER)
-      return method.bind(object).call(this, new ArrayList<Object>(), expr.method);
+      return method.invoke0(this, object, name);
     return method.bind(object);
   }
 
   @Override
-  public Void visitExpressionStmt(final Stmt.Expression stmt) {
+  public Completion visitExpressionStmt(final Stmt.Expression stmt) {
     evaluate(stmt.expression);
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitVarStmt(final Stmt.Var stmt) {
-    final Object value = evaluate(stmt.initializer);
-    environment.define(stmt.name.lexeme, stmt.initializer != null, value);
-    return null;
+  public Completion visitVarStmt(final Stmt.Var stmt) {
+    final Object value = stmt.initializer == null ? Environment.UNINITIALIZED : evaluate(stmt.initializer);
+    declare(stmt.name, stmt.is_boxed, value);
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitBlockStmt(final Stmt.Block stmt) {
-    executeBlock(stmt.statements, new Environment(environment));
-    return null;
+  public Completion visitBlockStmt(final Stmt.Block stmt) {
+    if (stmt.has_scope) return executeBlock(stmt.statements, new Environment(environment), captures);
+    for (final Stmt statement : stmt.statements) {
+      final Completion completion = execute(statement);
+      if (completion != Completion.NORMAL) return completion;
+    }
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitIfStmt(final Stmt.If stmt) {
-    if (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.true_branch);
-    } else {
-      execute(stmt.false_branch);
-    }
-    return null;
+  public Completion visitIfStmt(final Stmt.If stmt) {
+    return evaluateBoolean(stmt.condition) ? execute(stmt.true_branch) : execute(stmt.false_branch);
   }
 
   @Override
-  public Void visitWhileStmt(final Stmt.While stmt) {
-    while (isTruthy(evaluate(stmt.condition))) {
-      try {
-        execute(stmt.body);
-      } catch (final Break break_stmt) {
-        break;
-      } catch (final Continue continue_stmt) {
-        continue;
-      }
+  public Completion visitWhileStmt(final Stmt.While stmt) {
+    // A block body gets one environment for the whole loop, emptied before each iteration. Closures
+    // copy what they capture, so nothing created in an iteration can see the next one's variables.
+    final Environment body = stmt.body instanceof Stmt.Block && ((Stmt.Block) stmt.body).has_scope
+      ? new Environment(environment) : null;
+    while (evaluateBoolean(stmt.condition)) {
+      final Completion completion = body == null
+        ? execute(stmt.body)
+        : executeBlock(((Stmt.Block) stmt.body).statements, body.clear(), captures);
+      if (completion == Completion.BREAK) break;
+      if (completion == Completion.RETURN || completion == Completion.TAIL_CALL) return completion;
+      if (stmt.increment != null) evaluate(stmt.increment);
     }
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitFunctionStmt(final Stmt.Function stmt) {
-    final LoxFunction function = new LoxFunction(stmt, environment, LoxFunctionType.FUNCTION);
-    environment.define(stmt.name.lexeme, true, function);
-    return null;
+  public Completion visitFunctionStmt(final Stmt.Function stmt) {
+    // A function that refers to itself captures the box it is about to be stored in
+    final int slot = declare(stmt.name, stmt.is_boxed, Environment.UNINITIALIZED);
+    final LoxFunction function = new LoxFunction(stmt, capture(stmt), LoxFunctionType.FUNCTION);
+    define(stmt.name, slot, stmt.is_boxed, function);
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitReturnStmt(final Stmt.Return stmt) {
-    throw new Return(evaluate(stmt.value));
+  public Completion visitReturnStmt(final Stmt.Return stmt) {
+    if (stmt.is_tail_call && depth > TAIL_CALL_DEPTH && ((Expr.Call) stmt.value).inlined == null)
+      return tailCall((Expr.Call) stmt.value);
+    returned = evaluate(stmt.value);
+    return Completion.RETURN;
+  }
+
+  // Evaluates a returned call but leaves calling a Lox function to the caller's LoxFunction, which
+  // runs it in place of the function returning. Anything else is called here as usual.
+  private Completion tailCall(final Expr.Call expr) {
+    final Object callee;
+    LoxInstance receiver = null;
+    if (expr.callee instanceof Expr.Get) {
+      final Expr.Get get = (Expr.Get) expr.callee;
+      final Object object = evaluate(get.object);
+      final LoxFunction method = object instanceof LoxInstance
+        ? ((LoxInstance) object).method(get.name, expr.cache) : null;
+      if (method != null) receiver = (LoxInstance) object;
+      callee = method != null ? method : get(object, get.name, expr.cache);
+    } else {
+      callee = evaluate(expr.callee);
+    }
+    if (!(callee instanceof LoxFunction)) {
+      returned = call(callee, expr);
+      return Completion.RETURN;
+    }
+    final LoxFunction function = (LoxFunction) callee;
+    final Object[] arguments = evaluateArguments(expr);
+    checkArity(function, arguments.length, expr.paren);
+    tailCall(function, receiver != null ? receiver : function.receiver, arguments, expr.paren);
+    return Completion.TAIL_CALL;
+  }
+
+  Object tailCall(final LoxFunction function, final LoxInstance receiver, final Object[] arguments, final Token paren) {
+    tail_function = function;
+    tail_receiver = receiver;
+    tail_arguments = arguments;
+    tail_paren = paren;
+    return TAIL_CALL;
   }
 
   @Override
-  public Void visitBreakStmt(final Stmt.Break stmt) {
-    throw new Break();
+  public Completion visitBreakStmt(final Stmt.Break stmt) {
+    return Completion.BREAK;
   }
 
   @Override
-  public Void visitContinueStmt(final Stmt.Continue stmt) {
-    throw new Continue();
+  public Completion visitContinueStmt(final Stmt.Continue stmt) {
+    return Completion.CONTINUE;
+  }
+
+  static LoxFunctionType methodType(final Stmt.Function method) {
+    final boolean is_initializer = method.name.lexeme.equals("init");
+    final boolean is_static_init = method.name.lexeme.equals("static");
+    final boolean is_static_get = method.is_static && method.is_getter;
+    return is_static_init   ? LoxFunctionType.STATIC_INIT :
+           is_initializer   ? LoxFunctionType.INITIALIZER :
+           is_static_get    ? LoxFunctionType.STATIC_GETTER :
+           method.is_static ? LoxFunctionType.STATIC_METHOD :
+           method.is_getter ? LoxFunctionType.INSTANCE_GETTER :
+                              LoxFunctionType.INSTANCE_METHOD;
   }
 
   @Override
-  public Void visitClassStmt(final Stmt.Class stmt) {
+  public Completion visitClassStmt(final Stmt.Class stmt) {
     final Object superclass = evaluate(stmt.superclass);
     if (stmt.superclass != null && !(superclass instanceof LoxClass))
       throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
 
-    environment.define(stmt.name.lexeme, false, null);
+    final int slot = declare(stmt.name, stmt.is_boxed, Environment.UNINITIALIZED);
     if (stmt.superclass != null) {
       environment = new Environment(environment);
-      environment.define("super", true, superclass);
+      environment.define(superclass);
     }
     final Map<String, LoxFunction> methods = new HashMap<>();
-    final List<Pair<LoxFunction, Token>> static_blocks = new ArrayList<>();
+    final List<LoxFunction> static_blocks = new ArrayList<>();
     for (final Stmt.Function method : stmt.methods) {
-      final boolean is_initializer = method.name.lexeme.equals("init");
-      final boolean is_static_init = method.name.lexeme.equals("static");
-      final boolean is_static_get = method.is_static && method.is_getter;
-      final LoxFunctionType type = is_static_init   ? LoxFunctionType.STATIC_INIT :
-                                   is_initializer   ? LoxFunctionType.INITIALIZER :
-                                   is_static_get    ? LoxFunctionType.STATIC_GETTER :
-                                   method.is_static ? LoxFunctionType.STATIC_METHOD :
-                                   method.is_getter ? LoxFunctionType.INSTANCE_GETTER :
-                                                      LoxFunctionType.INSTANCE_METHOD;
-      final LoxFunction function = new LoxFunction(method, environment, type);
-      if (is_static_init)
-        static_blocks.add(new Pair<>(function, method.name));
+      final LoxFunctionType type = methodType(method);
+      final LoxFunction function = new LoxFunction(method, capture(method), type);
+      if (type == LoxFunctionType.STATIC_INIT)
+        static_blocks.add(function);
       else
         methods.put(method.name.lexeme, function);
     }
-    final LoxClass _class = new LoxClass(stmt.name.lexeme, methods, (LoxClass)superclass, this);
-    environment.assign(stmt.name, _class);
-    for (final Pair<LoxFunction, Token> pair : static_blocks) {
-      final LoxFunction static_method = pair.getKey();
-      final Token keyword = pair.getValue();
-      static_method.bind((LoxInstance)_class).call(this, new ArrayList<>(), keyword);
-    }
     if (superclass != null) {
       environment = environment.parent;
     }
-    return null;
+    final LoxClass _class = new LoxClass(stmt.name.lexeme, methods, (LoxClass)superclass, this);
+    define(stmt.name, slot, stmt.is_boxed, _class);
+    for (final LoxFunction static_block : static_blocks) {
+      static_block.invoke0(this, _class, static_block.declaration.name);
+    }
+    return Completion.NORMAL;
   }
 }
@@ -0,0 +1,617 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.craftinginterpreters.lox.ClassFile.*;
+
+// Compiles the body of a hot function into a JVM class so HotSpot can optimize it like Java code.
+// Lox locals become JVM locals and arithmetic stays on unboxed doubles; everything else calls
+// into the interpreter's own helpers. Functions that declare functions or classes, or that use
+// break/continue outside a loop, are left to the interpreter.
+class JitCompiler implements Expr.Visitor<JitCompiler.Kind>, Stmt.Visitor<Void> {
+  // What an expression leaves on the JVM stack
+  enum Kind { OBJECT, DOUBLE, BOOLEAN }
+
+  private static class Unsupported extends RuntimeException {
+    Unsupported(final String message) {
+      super(message, null, false, false);
+    }
+  }
+
+  private static class Loop {
+    final Label condition, next, end;
+
+    Loop(final Label condition, final Label next, final Label end) {
+      this.condition = condition;
+      this.next = next;
+      this.end = end;
+    }
+  }
+
+  private static final String PACKAGE = "com/craftinginterpreters/lox/";
+  private static final String OBJECT = "Ljava/lang/Object;", TOKEN = "L" + PACKAGE + "Token;";
+  private static final String HELPERS = PACKAGE + "CompiledFunction", BOX = PACKAGE + "Environment$Box";
+  private static final String CACHE = PACKAGE + "PropertyCache";
+  private static final String INVOKE_DESCRIPTOR =
+    "(L" + PACKAGE + "Interpreter;[Ljava/lang/Object;L" + PACKAGE + "LoxInstance;[Ljava/lang/Object;)" + OBJECT;
+  // JVM locals of invoke(interpreter, captures, receiver, arguments), followed by the constants
+  private static final int INTERPRETER = 1, CAPTURES = 2, RECEIVER = 3, ARGUMENTS = 4, CONSTANTS = 5;
+
+  private final Stmt.Function declaration;
+  private final LoxFunctionType type;
+  private final ClassFile file;
+  private final ClassFile.Code code;
+  private final List<Object> constants = new ArrayList<>();
+  private final Map<Object, Integer> constant_indices = new IdentityHashMap<>();
+  // The JVM local of each slot in each scope, innermost last, mirroring the resolver's scopes
+  private final List<List<Integer>> scopes = new ArrayList<>();
+  // Locals declared without an initializer, which must be checked when read
+  private final Set<Integer> maybe_uninitialized = new HashSet<>();
+  private final List<Loop> loops = new ArrayList<>();
+  private final String name;
+
+  private JitCompiler(final Stmt.Function declaration, final LoxFunctionType type) {
+    this.declaration = declaration;
+    this.type = type;
+    this.name = PACKAGE + "Compiled$" + declaration.name.lexeme;
+    this.file = new ClassFile(name, HELPERS);
+    this.code = file.method(ACC_FINAL, "invoke", INVOKE_DESCRIPTOR);
+  }
+
+  // Returns null when the function cannot be compiled, in which case it stays interpreted. A class
+  // the JVM rejects is a bug in the compiler, so a VerifyError or ClassFormatError is not caught.
+  static CompiledFunction compile(final Stmt.Function declaration, final LoxFunctionType type) {
+    try {
+      return new JitCompiler(declaration, type).compile();
+    } catch (final Unsupported | ClassFile.TooLarge e) {
+      return null;
+    }
+  }
+
+  private CompiledFunction compile() {
+    if (declaration.boxed_params != null) throw new Unsupported("Captured parameters");
+    code.newLocal(1); // CONSTANTS
+    code.load(ALOAD, 0);
+    code.field(GETFIELD, name, "constants", "[" + OBJECT);
+    code.store(ASTORE, CONSTANTS);
+
+    final List<Integer> function_scope = new ArrayList<>();
+    if (type != LoxFunctionType.FUNCTION) function_scope.add(RECEIVER);
+    for (int i = 0; i < declaration.params.size(); i++) {
+      final int local = code.newLocal(1);
+      code.load(ALOAD, ARGUMENTS);
+      code.pushInt(i);
+      code.op(AALOAD, -1);
+      code.store(ASTORE, local);
+      function_scope.add(local);
+    }
+    scopes.add(function_scope);
+    for (final Stmt statement : declaration.body) execute(statement);
+    code.op(ACONST_NULL, 1);
+    code.op(ARETURN, -1);
+    code.finish();
+
+    file.field(ACC_PRIVATE | ACC_FINAL, "constants", "[" + OBJECT);
+    final ClassFile.Code init = file.method(ACC_PUBLIC, "<init>", "([" + OBJECT + ")V");
+    init.load(ALOAD, 0);
+    init.invoke(INVOKESPECIAL, HELPERS, "<init>", "()V");
+    init.load(ALOAD, 0);
+    init.load(ALOAD, 1);
+    init.field(PUTFIELD, name, "constants", "[" + OBJECT);
+    init.op(RETURN, 0);
+    init.finish();
+
+    // A hidden class needs no unique name and is unloaded once its declaration is unreachable
+    try {
+      final Class<?> compiled = MethodHandles.lookup().defineHiddenClass(file.toByteArray(), true).lookupClass();
+      return (CompiledFunction) compiled.getConstructor(Object[].class).newInstance((Object) constants.toArray());
+    } catch (final ReflectiveOperationException e) {
+      throw new IllegalStateException("Cannot load compiled class " + name, e);
+    }
+  }
+
+  private void execute(final Stmt stmt) {
+    if (stmt != null) stmt.accept(this);
+  }
+
+  private Kind compile(final Expr expr) {
+    return expr.accept(this);
+  }
+
+  private void compileObject(final Expr expr) {
+    box(compile(expr));
+  }
+
+  // Number literals are pushed as doubles where a number is wanted
+  private Kind operand(final Expr expr) {
+    if (expr instanceof Expr.Grouping) return operand(((Expr.Grouping) expr).expression);
+    if (expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double) {
+      code.op2(LDC2_W, file.doubleConstant((double) ((Expr.Literal) expr).value), 2);
+      return Kind.DOUBLE;
+    }
+    return compile(expr);
+  }
+
+  private void condition(final Expr expr) {
+    final Kind kind = compile(expr);
+    if (kind == Kind.OBJECT) {
+      code.invoke(INVOKESTATIC, PACKAGE + "Interpreter", "isTruthy", "(" + OBJECT + ")Z");
+    } else if (kind == Kind.DOUBLE) { // Numbers are always truthy
+      code.op(POP2, -2);
+      code.op(ICONST_1, 1);
+    }
+  }
+
+  private void box(final Kind kind) {
+    if (kind == Kind.DOUBLE)
+      code.invoke(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+    else if (kind == Kind.BOOLEAN)
+      code.invoke(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+  }
+
+  private void pop(final Kind kind) {
+    if (kind == Kind.DOUBLE) code.op(POP2, -2);
+    else code.op(POP, -1);
+  }
+
+  private void constant(final Object value, final String type) {
+    Integer index = constant_indices.get(value);
+    if (index == null) {
+      index = constants.size();
+      constants.add(value);
+      constant_indices.put(value, index);
+    }
+    code.load(ALOAD, CONSTANTS);
+    code.pushInt(index);
+    code.op(AALOAD, -1);
+    if (type != null) code.op2(CHECKCAST, file.classRef(type), 0);
+  }
+
+  private void token(final Token token) {
+    constant(token, PACKAGE + "Token");
+  }
+
+  private int local(final int depth, final int slot) {
+    return scopes.get(scopes.size() - 1 - depth).get(slot);
+  }
+
+  private void upvalue(final int slot) {
+    code.load(ALOAD, CAPTURES);
+    code.pushInt(slot);
+    code.op(AALOAD, -1);
+  }
+
+  // Whether evaluating the expression can neither fail nor have side effects
+  private boolean isSimple(final Expr expr) {
+    if (expr instanceof Expr.Grouping) return isSimple(((Expr.Grouping) expr).expression);
+    if (expr instanceof Expr.Literal) return true;
+    if (expr instanceof Expr.Variable) {
+      final Expr.Variable variable = (Expr.Variable) expr;
+      return !variable.is_global && !variable.is_upvalue && !maybe_uninitialized.contains(local(variable.depth, variable.slot));
+    }
+    return false;
+  }
+
+  // Leaves both operands on the stack as doubles. Like the interpreter, both are evaluated
+  // before either is checked.
+  private void numbers(final Expr.Binary expr) {
+    final Kind left = operand(expr.left);
+    if (left != Kind.DOUBLE && !isSimple(expr.right)) {
+      box(left);
+      final int left_local = code.newLocal(1);
+      code.store(ASTORE, left_local);
+      final Kind right = operand(expr.right);
+      final int right_local = code.newLocal(right == Kind.DOUBLE ? 2 : 1);
+      if (right == Kind.DOUBLE) {
+        code.store(DSTORE, right_local);
+      } else {
+        box(right);
+        code.store(ASTORE, right_local);
+      }
+      code.load(ALOAD, left_local);
+      check(Kind.OBJECT, "left", expr.operator);
+      code.load(right == Kind.DOUBLE ? DLOAD : ALOAD, right_local);
+      check(right == Kind.DOUBLE ? Kind.DOUBLE : Kind.OBJECT, "right", expr.operator);
+    } else {
+      check(left, "left", expr.operator);
+      check(operand(expr.right), "right", expr.operator);
+    }
+  }
+
+  private void check(final Kind kind, final String side, final Token operator) {
+    if (kind == Kind.DOUBLE) return;
+    box(kind);
+    token(operator);
+    code.invoke(INVOKESTATIC, HELPERS, side, "(" + OBJECT + TOKEN + ")D");
+  }
+
+  private Kind compare(final int opcode, final int branch_if_false) {
+    code.op(opcode, -3);
+    final Label is_false = file.newLabel(), end = file.newLabel();
+    code.jump(branch_if_false, is_false);
+    code.op(ICONST_1, 1);
+    code.jump(GOTO, end);
+    code.bind(is_false);
+    code.op(ICONST_0, 1);
+    code.bind(end);
+    return Kind.BOOLEAN;
+  }
+
+  // Boxes the double under the value on top of the stack
+  private void boxUnder(final Kind top) {
+    final int local = code.newLocal(1);
+    box(top);
+    code.store(ASTORE, local);
+    box(Kind.DOUBLE);
+    code.load(ALOAD, local);
+  }
+
+  @Override
+  public Kind visitBinaryExpr(final Expr.Binary expr) {
+    switch (expr.operator.type) {
+      case PLUS: {
+        final Kind left = operand(expr.left);
+        if (left == Kind.DOUBLE) {
+          final Kind right = operand(expr.right);
+          if (right == Kind.DOUBLE) {
+            code.op(DADD, -2);
+            return Kind.DOUBLE;
+          }
+          boxUnder(right);
+        } else {
+          box(left);
+          compileObject(expr.right);
+        }
+        token(expr.operator);
+        code.invoke(INVOKESTATIC, HELPERS, "add", "(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT);
+        return Kind.OBJECT;
+      }
+      case MINUS: numbers(expr); code.op(DSUB, -2); return Kind.DOUBLE;
+      case STAR: numbers(expr); code.op(DMUL, -2); return Kind.DOUBLE;
+      case SLASH:
+        numbers(expr);
+        token(expr.operator);
+        code.invoke(INVOKESTATIC, HELPERS, "divide", "(DD" + TOKEN + ")D");
+        return Kind.DOUBLE;
+      // NaN compares false, so the comparison instruction is chosen to push the failing result
+      case GREATER: numbers(expr); return compare(DCMPL, IFLE);
+      case GREATER_EQUAL: numbers(expr); return compare(DCMPL, IFLT);
+      case LESS: numbers(expr); return compare(DCMPG, IFGE);
+      case LESS_EQUAL: numbers(expr); return compare(DCMPG, IFGT);
+      case EQUAL_EQUAL:
+      case BANG_EQUAL: {
+        final Kind left = operand(expr.left);
+        if (left == Kind.DOUBLE) {
+          final Kind right = operand(expr.right);
+          if (right == Kind.DOUBLE) {
+            compare(DCMPL, IFNE);
+          } else {
+            boxUnder(right);
+            code.invoke(INVOKESTATIC, PACKAGE + "Interpreter", "isEqual", "(" + OBJECT + OBJECT + ")Z");
+          }
+        } else {
+          box(left);
+          compileObject(expr.right);
+          code.invoke(INVOKESTATIC, PACKAGE + "Interpreter", "isEqual", "(" + OBJECT + OBJECT + ")Z");
+        }
+        if (expr.operator.type == TokenType.BANG_EQUAL) {
+          code.op(ICONST_1, 1);
+          code.op(IXOR, -1);
+        }
+        return Kind.BOOLEAN;
+      }
+    }
+    throw new Unsupported("Binary operator " + expr.operator.lexeme);
+  }
+
+  @Override
+  public Kind visitGroupingExpr(final Expr.Grouping expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public Kind visitLiteralExpr(final Expr.Literal expr) {
+    if (expr.value == null) {
+      code.op(ACONST_NULL, 1);
+    } else if (expr.value instanceof Boolean) {
+      code.field(GETSTATIC, "java/lang/Boolean", (boolean) expr.value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+    } else {
+      constant(expr.value, null);
+    }
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitUnaryExpr(final Expr.Unary expr) {
+    switch (expr.operator.type) {
+      case MINUS:
+        check(operand(expr.right), "right", expr.operator);
+        code.op(DNEG, 0);
+        return Kind.DOUBLE;
+      case BANG:
+        condition(expr.right);
+        code.op(ICONST_1, 1);
+        code.op(IXOR, -1);
+        return Kind.BOOLEAN;
+    }
+    throw new Unsupported("Unary operator " + expr.operator.lexeme);
+  }
+
+  @Override
+  public Kind visitCommaExpr(final Expr.Comma expr) {
+    pop(compile(expr.left));
+    return compile(expr.right);
+  }
+
+  @Override
+  public Kind visitTernaryExpr(final Expr.Ternary expr) {
+    final Label false_expr = file.newLabel(), end = file.newLabel();
+    condition(expr.condition);
+    code.jump(IFEQ, false_expr);
+    compileObject(expr.true_expr);
+    code.jump(GOTO, end);
+    code.bind(false_expr);
+    compileObject(expr.false_expr);
+    code.bind(end);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitVariableExpr(final Expr.Variable expr) {
+    if (expr.is_global) {
+      code.load(ALOAD, INTERPRETER);
+      code.field(GETFIELD, PACKAGE + "Interpreter", "globals", "L" + PACKAGE + "Globals;");
+      code.pushInt(expr.slot);
+      token(expr.name);
+      code.invoke(INVOKEVIRTUAL, PACKAGE + "Globals", "get", "(I" + TOKEN + ")" + OBJECT);
+      return Kind.OBJECT;
+    }
+    if (expr.is_upvalue) {
+      upvalue(expr.slot);
+      if (expr.is_boxed) {
+        code.op2(CHECKCAST, file.classRef(BOX), 0);
+        code.field(GETFIELD, BOX, "value", OBJECT);
+      }
+    } else {
+      if (expr.is_boxed) throw new Unsupported("Boxed local");
+      final int local = local(expr.depth, expr.slot);
+      code.load(ALOAD, local);
+      if (!maybe_uninitialized.contains(local)) return Kind.OBJECT;
+    }
+    token(expr.name);
+    code.invoke(INVOKESTATIC, HELPERS, "checkInitialized", "(" + OBJECT + TOKEN + ")" + OBJECT);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitAssignExpr(final Expr.Assign expr) {
+    if (expr.is_global) {
+      compileObject(expr.value);
+      code.load(ALOAD, INTERPRETER);
+      code.pushInt(expr.slot);
+      token(expr.name);
+      code.invoke(INVOKESTATIC, HELPERS, "assignGlobal",
+        "(" + OBJECT + "L" + PACKAGE + "Interpreter;I" + TOKEN + ")" + OBJECT);
+    } else if (expr.is_upvalue) {
+      if (!expr.is_boxed) throw new Unsupported("Unboxed upvalue assignment");
+      upvalue(expr.slot);
+      code.op2(CHECKCAST, file.classRef(BOX), 0);
+      compileObject(expr.value);
+      code.op(DUP_X1, 1);
+      code.field(PUTFIELD, BOX, "value", OBJECT);
+    } else {
+      if (expr.is_boxed) throw new Unsupported("Boxed local");
+      compileObject(expr.value);
+      code.op(DUP, 1);
+      code.store(ASTORE, local(expr.depth, expr.slot));
+    }
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitLogicalExpr(final Expr.Logical expr) {
+    final Label end = file.newLabel();
+    compileObject(expr.left);
+    code.op(DUP, 1);
+    code.invoke(INVOKESTATIC, PACKAGE + "Interpreter", "isTruthy", "(" + OBJECT + ")Z");
+    code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+    code.op(POP, -1);
+    compileObject(expr.right);
+    code.bind(end);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitCallExpr(final Expr.Call expr) {
+    return compileCall(expr, false);
+  }
+
+  private Kind compileCall(final Expr.Call expr, final boolean tail) {
+    final String function = "L" + PACKAGE + "LoxFunction;";
+    if (expr.callee instanceof Expr.Get) {
+      // Leaves the unbound method (or null) and what to call it on (or the property to call)
+      final Expr.Get get = (Expr.Get) expr.callee;
+      compileObject(get.object);
+      code.op(DUP, 1);
+      token(get.name);
+      constant(expr.cache, CACHE);
+      code.invoke(INVOKESTATIC, HELPERS, "method", "(" + OBJECT + TOKEN + "L" + CACHE + ";)" + function);
+      code.op(DUP_X1, 1);
+      token(get.name);
+      constant(expr.cache, CACHE);
+      code.invoke(INVOKESTATIC, HELPERS, "target", "(" + OBJECT + function + TOKEN + "L" + CACHE + ";)" + OBJECT);
+      call(expr, tail ? "tailInvoke" : "invoke", function + OBJECT, tail);
+      return Kind.OBJECT;
+    }
+    compileObject(expr.callee);
+    call(expr, tail ? "tailCall" : "call", OBJECT, tail);
+    return Kind.OBJECT;
+  }
+
+  // Calls the helper for the argument count, which takes up to three arguments directly and
+  // any more (or those of a tail call) in an array, after whatever the callee left on the stack
+  private void call(final Expr.Call expr, final String helper, final String callee, final boolean tail) {
+    final int count = expr.arguments.size();
+    final boolean direct = count <= 3 && !tail;
+    final StringBuilder descriptor = new StringBuilder("(").append(callee);
+    if (direct) {
+      for (final Expr argument : expr.arguments) {
+        compileObject(argument);
+        descriptor.append(OBJECT);
+      }
+    } else {
+      code.pushInt(count);
+      code.op2(ANEWARRAY, file.classRef("java/lang/Object"), 0);
+      for (int i = 0; i < count; i++) {
+        code.op(DUP, 1);
+        code.pushInt(i);
+        compileObject(expr.arguments.get(i));
+        code.op(AASTORE, -3);
+      }
+      descriptor.append("[").append(OBJECT);
+    }
+    code.load(ALOAD, INTERPRETER);
+    token(expr.paren);
+    descriptor.append("L").append(PACKAGE).append("Interpreter;").append(TOKEN).append(")").append(OBJECT);
+    code.invoke(INVOKESTATIC, HELPERS, direct ? helper + count : helper, descriptor.toString());
+  }
+
+  @Override
+  public Kind visitGetExpr(final Expr.Get expr) {
+    compileObject(expr.object);
+    token(expr.name);
+    constant(expr.cache, CACHE);
+    code.invoke(INVOKESTATIC, PACKAGE + "Interpreter", "get", "(" + OBJECT + TOKEN + "L" + CACHE + ";)" + OBJECT);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitSetExpr(final Expr.Set expr) {
+    final String instance = "L" + PACKAGE + "LoxInstance;";
+    compileObject(expr.object);
+    token(expr.name);
+    code.invoke(INVOKESTATIC, HELPERS, "instance", "(" + OBJECT + TOKEN + ")" + instance);
+    compileObject(expr.value);
+    token(expr.name);
+    constant(expr.cache, CACHE);
+    code.invoke(INVOKESTATIC, HELPERS, "set", "(" + instance + OBJECT + TOKEN + "L" + CACHE + ";)" + OBJECT);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitThisExpr(final Expr.This expr) {
+    if (expr.is_upvalue) upvalue(expr.slot);
+    else code.load(ALOAD, local(expr.depth, expr.slot));
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitSuperExpr(final Expr.Super expr) {
+    code.load(ALOAD, INTERPRETER);
+    if (expr.is_upvalue) upvalue(expr.slot);
+    else code.load(ALOAD, local(expr.depth, expr.slot));
+    code.op2(CHECKCAST, file.classRef(PACKAGE + "LoxClass"), 0);
+    visitThisExpr(expr.receiver);
+    code.op2(CHECKCAST, file.classRef(PACKAGE + "LoxInstance"), 0);
+    token(expr.method);
+    code.invoke(INVOKEVIRTUAL, PACKAGE + "Interpreter", "superMethod",
+      "(L" + PACKAGE + "LoxClass;L" + PACKAGE + "LoxInstance;" + TOKEN + ")" + OBJECT);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Void visitExpressionStmt(final Stmt.Expression stmt) {
+    if (stmt.expression != null) pop(compile(stmt.expression));
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(final Stmt.Var stmt) {
+    if (stmt.is_boxed) throw new Unsupported("Boxed local");
+    if (stmt.initializer == null)
+      code.field(GETSTATIC, PACKAGE + "Environment", "UNINITIALIZED", OBJECT);
+    else
+      compileObject(stmt.initializer);
+    final int local = code.newLocal(1);
+    code.store(ASTORE, local);
+    if (stmt.initializer == null) maybe_uninitialized.add(local);
+    scopes.get(scopes.size() - 1).add(local);
+    return null;
+  }
+
+  @Override
+  public Void visitBlockStmt(final Stmt.Block stmt) {
+    if (stmt.has_scope) scopes.add(new ArrayList<>());
+    for (final Stmt statement : stmt.statements) execute(statement);
+    if (stmt.has_scope) scopes.remove(scopes.size() - 1);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(final Stmt.If stmt) {
+    final Label false_branch = file.newLabel(), end = file.newLabel();
+    condition(stmt.condition);
+    code.jump(IFEQ, false_branch);
+    execute(stmt.true_branch);
+    if (stmt.false_branch != null) code.jump(GOTO, end);
+    code.bind(false_branch);
+    execute(stmt.false_branch);
+    code.bind(end);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(final Stmt.While stmt) {
+    final Loop loop = new Loop(file.newLabel(), file.newLabel(), file.newLabel());
+    code.bind(loop.condition);
+    condition(stmt.condition);
+    code.jump(IFEQ, loop.end);
+    loops.add(loop);
+    execute(stmt.body);
+    loops.remove(loops.size() - 1);
+    code.bind(loop.next);
+    if (stmt.increment != null) pop(compile(stmt.increment));
+    code.jump(GOTO, loop.condition);
+    code.bind(loop.end);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(final Stmt.Function stmt) {
+    throw new Unsupported("Nested function");
+  }
+
+  @Override
+  public Void visitClassStmt(final Stmt.Class stmt) {
+    throw new Unsupported("Nested class");
+  }
+
+  @Override
+  public Void visitReturnStmt(final Stmt.Return stmt) {
+    if (stmt.value == null) code.op(ACONST_NULL, 1);
+    else if (stmt.is_tail_call) compileCall((Expr.Call) stmt.value, true);
+    else compileObject(stmt.value);
+    code.op(ARETURN, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(final Stmt.Break stmt) {
+    if (loops.isEmpty()) throw new Unsupported("Break outside a loop");
+    code.jump(GOTO, loops.get(loops.size() - 1).end);
+    return null;
+  }
+
+  @Override
+  public Void visitContinueStmt(final Stmt.Continue stmt) {
+    if (loops.isEmpty()) throw new Unsupported("Continue outside a loop");
+    code.jump(GOTO, loops.get(loops.size() - 1).next);
+    return null;
+  }
+}
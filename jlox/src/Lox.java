@@ -6,28 +6,105 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class Lox {
   static boolean hadError = false, hadRuntimeError = false;
   static boolean allowFieldCreation = true;
-  private static final Interpreter interpreter = new Interpreter();
+  // Calls before a function is compiled to JVM bytecode, or 0 to only interpret
+  static int jitThreshold = 1000;
+  // Run compiled bytecode on the VM instead of walking the tree
+  static boolean useVm = false;
+  // Inline calls to small global functions. Off in the REPL, where a later line can redefine them.
+  static boolean inline = true;
+  // How deep Lox calls may nest before a "Stack overflow." error. The VM keeps its frames on the
+  // heap; the tree-walker and compiled code run on a thread with STACK_SIZE bytes of Java stack,
+  // and report running out of it the same way.
+  static int maxDepth = 100_000;
+  private static final long STACK_SIZE = 1L << 30;
+  // Where --profile writes collapsed stacks, and how many samples it takes per second
+  private static String profilePath = null;
+  private static int profileRate = 1000;
+  // Where --line-counts writes the annotated source, or null
+  private static String lineCountsPath = null;
+  private static Interpreter interpreter;
   private static String source[];
 
-  public static void main(final String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
+  public static void main(final String[] args) throws IOException, InterruptedException {
+    int arg = 0;
+    for (; arg < args.length && args[arg].startsWith("--"); arg++) {
+      if (args[arg].equals("--vm")) {
+        useVm = true;
+      } else if (args[arg].equals("--no-jit")) {
+        jitThreshold = 0;
+      } else if (args[arg].equals("--no-inline")) {
+        inline = false;
+      } else if (args[arg].startsWith("--jit-threshold=")) {
+        jitThreshold = Integer.parseInt(args[arg].substring("--jit-threshold=".length()));
+      } else if (args[arg].startsWith("--max-depth=")) {
+        maxDepth = Integer.parseInt(args[arg].substring("--max-depth=".length()));
+        if (maxDepth <= 0) usage();
+      } else if (args[arg].equals("--profile")) {
+        profilePath = "profile.folded";
+      } else if (args[arg].startsWith("--profile=")) {
+        profilePath = args[arg].substring("--profile=".length());
+      } else if (args[arg].startsWith("--profile-rate=")) {
+        profileRate = Integer.parseInt(args[arg].substring("--profile-rate=".length()));
+        if (profileRate <= 0) usage();
+      } else if (args[arg].equals("--line-counts")) {
+        lineCountsPath = "";
+      } else if (args[arg].startsWith("--line-counts=")) {
+        lineCountsPath = args[arg].substring("--line-counts=".length());
+      } else {
+        usage();
+      }
+    }
+    if (lineCountsPath != null) {
+      // Only the tree-walker counts lines, and the optimizer is skipped so the counts describe the
+      // program as written
+      if (useVm) usage();
+      jitThreshold = 0;
+      interpreter = new InstrumentedInterpreter();
     } else {
-      runPrompt();
+      interpreter = new Interpreter();
+    }
+    if (args.length - arg > 1) usage();
+    final String path = args.length - arg == 1 ? args[arg] : null;
+    // Calls in the tree-walker nest on the Java stack, which the main thread keeps small
+    final FutureTask<Void> task = new FutureTask<>(() -> {
+      if (path != null) runFile(path);
+      else runPrompt();
+      return null;
+    });
+    new Thread(null, task, "lox", STACK_SIZE).start();
+    try {
+      task.get();
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw (RuntimeException) cause;
     }
   }
 
+  private static void usage() {
+    System.out.println("Usage: jlox [--vm] [--no-jit] [--jit-threshold=calls] [--no-inline] [--max-depth=calls]\n" +
+                       "            [--profile[=file]] [--profile-rate=hz] [--line-counts[=file]] [script]");
+    System.exit(64);
+  }
+
   private static void runFile(final String path) throws IOException {
     final byte[] bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
+    if (profilePath != null) Profiler.start(profileRate);
+    run(interpreter, new String(bytes, Charset.defaultCharset()));
+    if (profilePath != null) Profiler.finish(profilePath);
+    if (lineCountsPath != null) {
+      ((InstrumentedInterpreter) interpreter).report(lineCountsPath.isEmpty() ? path + ".gcov" : lineCountsPath,
+                                                     path, source);
+    }
     if (hadError) System.exit(65);
     if (hadRuntimeError) System.exit(70);
   }
@@ -36,27 +113,37 @@ public class Lox {
     final InputStreamReader input = new InputStreamReader(System.in);
     final BufferedReader reader = new BufferedReader(input);
 
+    inline = false;
     System.out.println("Starting REPL...");
     while (true) {
       System.out.print("> ");
       final String line = reader.readLine();
       if (line == null) break;
-      run(line);
+      run(interpreter, line);
       hadError = false;
     }
     System.out.println("Exiting REPL");
   }
 
-  private static void run(final String source) {
+  static void run(final Interpreter interpreter, final String source) {
     Lox.source = source.split("\\r?\\n");
     final List<Token> tokens = new Scanner(source).scanTokens();
     final List<Stmt> statements = new Parser(tokens).parseProgram();
     if (hadError) return;
     // for (final Token token : tokens) System.out.println(token);
     // for (final Stmt stmt : statements) System.out.println(new AstPrinter().print(stmt));
-    new Resolver(interpreter).resolve(statements);
+    final Resolver resolver = new Resolver(interpreter);
+    resolver.resolve(statements);
     if (hadError) return;
-    interpreter.interpret(statements);
+    if (lineCountsPath == null)
+      new Optimizer(inline ? resolver.constantFunctions() : Collections.emptyMap()).optimize(statements);
+    if (useVm) {
+      final Chunk script = BytecodeCompiler.compile(statements);
+      if (hadError) return;
+      interpreter.vm.interpret(script);
+    } else {
+      interpreter.interpret(statements);
+    }
   }
 
   static void error(final int line, final int column, final String message) {
@@ -66,6 +153,7 @@ public class Lox {
   static void runtimeError(final RuntimeError error) {
     report("RuntimeError", error.token.line, error.token.start_column, error.getMessage());
     hadRuntimeError = true;
+    Metrics.runtime_errors.increment();
   }
 
   private static void report(final String type, final int line, final int column, final String message) {
@@ -1,8 +1,26 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
 interface LoxCallable {
+  Object[] NO_ARGUMENTS = new Object[0];
+
   int arity();
-  Object call(final Interpreter interpreter, final List<Object> arguments, final Token caller);
+  Object call(final Interpreter interpreter, final Object[] arguments, final Token caller);
+
+  // Calls with up to three arguments go through these, so callees that can take their arguments
+  // directly need no array. Arity has already been checked.
+  default Object call0(final Interpreter interpreter, final Token caller) {
+    return call(interpreter, NO_ARGUMENTS, caller);
+  }
+
+  default Object call1(final Interpreter interpreter, final Object a, final Token caller) {
+    return call(interpreter, new Object[] {a}, caller);
+  }
+
+  default Object call2(final Interpreter interpreter, final Object a, final Object b, final Token caller) {
+    return call(interpreter, new Object[] {a, b}, caller);
+  }
+
+  default Object call3(final Interpreter interpreter, final Object a, final Object b, final Object c, final Token caller) {
+    return call(interpreter, new Object[] {a, b, c}, caller);
+  }
 }
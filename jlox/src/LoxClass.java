@@ -1,30 +1,37 @@
 
 package com.craftinginterpreters.lox;
 
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 
 class LoxClass extends LoxInstance implements LoxCallable {
   final String name;
-  final Map<String, LoxFunction> methods;
+  // Own and inherited methods, flattened when the class is created since neither can change
+  private final Map<String, LoxFunction> methods;
   final LoxClass superclass;
+  // Where the fields of this class's instances start from
+  final Shape root_shape = new Shape();
+  private final LoxFunction initializer;
+  private final int arity;
+  // A superclass whose init the initializer does not call itself is constructed first
+  private final boolean constructs_superclass;
 
   LoxClass(final String name, final Map<String, LoxFunction> methods, final LoxClass superclass, final Interpreter interpreter) {
     super(null, interpreter); this._class = this;
     this.name = name;
-    this.methods = methods;
     this.superclass = superclass;
+    this.methods = superclass == null ? new HashMap<>() : new HashMap<>(superclass.methods);
+    this.methods.putAll(methods);
+    this.initializer = this.methods.get("init");
+    this.arity = initializer == null ? 0 : initializer.arity();
+    this.constructs_superclass = superclass != null && !hasSuperInit(methods);
   }
 
   LoxFunction findMethod(final String name) {
-    if (methods.containsKey(name))
-      return methods.get(name);
-    if (superclass != null)
-      return superclass.findMethod(name);
-    return null;
+    return methods.get(name);
   }
 
-  private boolean hasSuperInit() {
+  private static boolean hasSuperInit(final Map<String, LoxFunction> methods) {
     if (!methods.containsKey("init")) return false;
     final LoxFunction init = methods.get("init");
     if (init.declaration.body.isEmpty()) return false;
@@ -38,23 +45,60 @@ class LoxClass extends LoxInstance implements LoxCallable {
     return true;
   }
 
+  // The initializer that is all a call to this class runs, which the VM can run in its own loop,
+  // or null if there is none or the superclass must be constructed first
+  LoxFunction directInitializer() {
+    return constructs_superclass ? null : initializer;
+  }
+
+  LoxInstance instantiate(final Interpreter interpreter) {
+    Metrics.instances_created.increment();
+    return new LoxInstance(this, interpreter);
+  }
+
+  @Override
+  public Object call(final Interpreter interpreter, final Object[] arguments, final Token caller) {
+    final LoxInstance instance = instantiate(interpreter);
+    if (constructs_superclass) superclass.call(interpreter, arguments, caller);
+    if (initializer != null) initializer.invoke(interpreter, instance, arguments, caller);
+    return instance;
+  }
+
+  @Override
+  public Object call0(final Interpreter interpreter, final Token caller) {
+    final LoxInstance instance = instantiate(interpreter);
+    if (constructs_superclass) superclass.call0(interpreter, caller);
+    if (initializer != null) initializer.invoke0(interpreter, instance, caller);
+    return instance;
+  }
+
+  @Override
+  public Object call1(final Interpreter interpreter, final Object a, final Token caller) {
+    final LoxInstance instance = instantiate(interpreter);
+    if (constructs_superclass) superclass.call1(interpreter, a, caller);
+    if (initializer != null) initializer.invoke1(interpreter, instance, a, caller);
+    return instance;
+  }
+
+  @Override
+  public Object call2(final Interpreter interpreter, final Object a, final Object b, final Token caller) {
+    final LoxInstance instance = instantiate(interpreter);
+    if (constructs_superclass) superclass.call2(interpreter, a, b, caller);
+    if (initializer != null) initializer.invoke2(interpreter, instance, a, b, caller);
+    return instance;
+  }
+
   @Override
-  public Object call(final Interpreter interpreter, final List<Object> arguments, final Token caller) {
-    final LoxInstance instance = new LoxInstance(this, interpreter);
-    final LoxFunction initializer = findMethod("init");
-    final boolean super_init_called = hasSuperInit();
-    if (superclass != null && !super_init_called)
-      superclass.call(interpreter, arguments, caller);
-    if (initializer != null)
-      initializer.bind(instance).call(interpreter, arguments, caller);
+  public Object call3(final Interpreter interpreter, final Object a, final Object b, final Object c, final Token caller) {
+    final LoxInstance instance = instantiate(interpreter);
+    if (constructs_superclass) superclass.call3(interpreter, a, b, c, caller);
+    if (initializer != null) initializer.invoke3(interpreter, instance, a, b, c, caller);
     return instance;
   }
 
   @Override
   public int arity() {
-    final LoxFunction initializer = findMethod("init");
-    if (initializer == null) return 0;
-    return initializer.arity();
+    return arity;
   }
 
   @Override
@@ -1,7 +1,5 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
 enum LoxFunctionType {
   FUNCTION,
   INITIALIZER,
@@ -14,23 +12,33 @@ enum LoxFunctionType {
 
 class LoxFunction implements LoxCallable {
   final Stmt.Function declaration;
-  private final Environment closure;
+  // Only the variables the body uses, as resolved in declaration.capture_slots
+  final Object[] captures;
   final LoxFunctionType type;
   final boolean is_static;
+  final LoxInstance receiver;
+
+  LoxFunction(final Stmt.Function declaration, final Object[] captures, final LoxFunctionType type) {
+    this(declaration, captures, type, null);
+  }
 
-  LoxFunction(final Stmt.Function declaration, final Environment closure, final LoxFunctionType type) {
+  private LoxFunction(final Stmt.Function declaration, final Object[] captures, final LoxFunctionType type, final LoxInstance receiver) {
     this.declaration = declaration;
-    this.closure = closure;
+    this.captures = captures;
     this.type = type;
     this.is_static = (type == LoxFunctionType.STATIC_METHOD)
                   || (type == LoxFunctionType.STATIC_GETTER)
                   || (type == LoxFunctionType.STATIC_INIT);
+    this.receiver = receiver;
   }
 
   LoxFunction bind(final LoxInstance instance) {
-    final Environment environment = new Environment(closure);
-    environment.define("this", true, instance);
-    return new LoxFunction(declaration, environment, type);
+    return new LoxFunction(declaration, captures, type, instance);
+  }
+
+  // Whether this is the given method, bound to some receiver
+  boolean isBoundFrom(final LoxFunction method) {
+    return declaration == method.declaration && captures == method.captures;
   }
 
   @Override
@@ -38,26 +46,163 @@ class LoxFunction implements LoxCallable {
     return declaration.params.size();
   }
 
+  void checkReceiver(final LoxInstance receiver, final Token caller) {
+    if (type == LoxFunctionType.FUNCTION) return;
+    if (is_static && !(receiver instanceof LoxClass))
+      throw new RuntimeError(caller, "Cannot call static function from instance.");
+    else if (!is_static && receiver instanceof LoxClass)
+      throw new RuntimeError(caller, "Cannot call method from non-instance (class).");
+  }
+
   @Override
-  public Object call(final Interpreter interpreter, final List<Object> arguments, final Token caller) {
-    final Environment environment = new Environment(closure);
-    final Object _this = type == LoxFunctionType.FUNCTION ? null : closure.getAt(0, "this");
-    if (type != LoxFunctionType.FUNCTION) { // Check static rules
-      if (is_static && !(_this instanceof LoxClass))
-        throw new RuntimeError(caller, "Cannot call static function from instance.");
-      else if (!is_static && _this instanceof LoxClass)
-        throw new RuntimeError(caller, "Cannot call method from non-instance (class).");
-    }
-    for (int i = 0; i < declaration.params.size(); i++) {
-      environment.define(declaration.params.get(i).lexeme, true, arguments.get(i));
+  public Object call(final Interpreter interpreter, final Object[] arguments, final Token caller) {
+    return invoke(interpreter, receiver, arguments, caller);
+  }
+
+  @Override
+  public Object call0(final Interpreter interpreter, final Token caller) {
+    return invoke0(interpreter, receiver, caller);
+  }
+
+  @Override
+  public Object call1(final Interpreter interpreter, final Object a, final Token caller) {
+    return invoke1(interpreter, receiver, a, caller);
+  }
+
+  @Override
+  public Object call2(final Interpreter interpreter, final Object a, final Object b, final Token caller) {
+    return invoke2(interpreter, receiver, a, b, caller);
+  }
+
+  @Override
+  public Object call3(final Interpreter interpreter, final Object a, final Object b, final Object c, final Token caller) {
+    return invoke3(interpreter, receiver, a, b, c, caller);
+  }
+
+  // Calls a method on a receiver without binding it first. The fixed-arity versions put the
+  // arguments straight into the new environment when the function is interpreted.
+  Object invoke(final Interpreter interpreter, final LoxInstance receiver, final Object[] arguments, final Token caller) {
+    checkReceiver(receiver, caller);
+    if (!interpreted()) return trampoline(interpreter, run(interpreter, receiver, arguments, caller));
+    final Environment environment = enter(receiver);
+    for (int i = 0; i < arguments.length; i++) define(environment, i, arguments[i]);
+    return trampoline(interpreter, execute(interpreter, environment, receiver, caller));
+  }
+
+  Object invoke0(final Interpreter interpreter, final LoxInstance receiver, final Token caller) {
+    checkReceiver(receiver, caller);
+    if (!interpreted()) return trampoline(interpreter, run(interpreter, receiver, NO_ARGUMENTS, caller));
+    return trampoline(interpreter, execute(interpreter, enter(receiver), receiver, caller));
+  }
+
+  Object invoke1(final Interpreter interpreter, final LoxInstance receiver, final Object a, final Token caller) {
+    checkReceiver(receiver, caller);
+    if (!interpreted()) return trampoline(interpreter, run(interpreter, receiver, new Object[] {a}, caller));
+    final Environment environment = enter(receiver);
+    define(environment, 0, a);
+    return trampoline(interpreter, execute(interpreter, environment, receiver, caller));
+  }
+
+  Object invoke2(final Interpreter interpreter, final LoxInstance receiver, final Object a, final Object b, final Token caller) {
+    checkReceiver(receiver, caller);
+    if (!interpreted()) return trampoline(interpreter, run(interpreter, receiver, new Object[] {a, b}, caller));
+    final Environment environment = enter(receiver);
+    define(environment, 0, a);
+    define(environment, 1, b);
+    return trampoline(interpreter, execute(interpreter, environment, receiver, caller));
+  }
+
+  Object invoke3(final Interpreter interpreter, final LoxInstance receiver, final Object a, final Object b, final Object c,
+                 final Token caller) {
+    checkReceiver(receiver, caller);
+    if (!interpreted()) return trampoline(interpreter, run(interpreter, receiver, new Object[] {a, b, c}, caller));
+    final Environment environment = enter(receiver);
+    define(environment, 0, a);
+    define(environment, 1, b);
+    define(environment, 2, c);
+    return trampoline(interpreter, execute(interpreter, environment, receiver, caller));
+  }
+
+  // Whether the tree-walker runs this call, rather than the VM or compiled code. Calls are
+  // counted per declaration so that bound methods, which are created on every access, warm up too.
+  // The VM counts calls to its functions itself, as calls between them do not come here.
+  private boolean interpreted() {
+    if (declaration.chunk != null) return false;
+    Metrics.function_calls.increment();
+    if (declaration.compiled == null && ++declaration.calls == Lox.jitThreshold)
+      declaration.compiled = JitCompiler.compile(declaration, type);
+    return declaration.compiled == null;
+  }
+
+  private Object run(final Interpreter interpreter, final LoxInstance receiver, final Object[] arguments, final Token caller) {
+    // The VM keeps the profiler's stack itself, as calls between its functions do not come here
+    if (declaration.chunk != null) return interpreter.vm.call(this, receiver, arguments, caller);
+    deeper(interpreter, caller);
+    if (Profiler.active) Profiler.push(declaration);
+    try {
+      final Object result = declaration.compiled.invoke(interpreter, captures, receiver, arguments);
+      return type == LoxFunctionType.INITIALIZER ? receiver : result;
+    } catch (final StackOverflowError error) {
+      throw new RuntimeError(caller, "Stack overflow.");
+    } finally {
+      interpreter.depth--;
+      if (Profiler.active) Profiler.pop();
     }
+  }
+
+  // Counts a call that runs on the Java stack, which is bounded by Lox.maxDepth as the VM's frames
+  // are. Running out of Java stack first is reported the same way by the callers.
+  private static void deeper(final Interpreter interpreter, final Token caller) {
+    if (interpreter.depth >= Lox.maxDepth) throw new RuntimeError(caller, "Stack overflow.");
+    interpreter.depth++;
+  }
+
+  private Environment enter(final LoxInstance receiver) {
+    final Environment environment = new Environment(null);
+    if (type != LoxFunctionType.FUNCTION) environment.define(receiver);
+    return environment;
+  }
+
+  private void define(final Environment environment, final int parameter, final Object argument) {
+    final boolean[] boxed_params = declaration.boxed_params;
+    environment.define(boxed_params != null && boxed_params[parameter] ? new Environment.Box(argument) : argument);
+  }
+
+  private Object execute(final Interpreter interpreter, final Environment environment, final LoxInstance receiver,
+                         final Token caller) {
+    deeper(interpreter, caller);
+    if (Profiler.active) Profiler.push(declaration);
     try {
-      interpreter.executeBlock(declaration.body, environment);
-    } catch (final Return returnValue) {
-      return type == LoxFunctionType.INITIALIZER ? _this : returnValue.value;
+      final Completion completion = interpreter.executeBlock(declaration.body, environment, captures);
+      if (type == LoxFunctionType.INITIALIZER) return receiver;
+      if (completion == Completion.TAIL_CALL) return Interpreter.TAIL_CALL;
+      return completion == Completion.RETURN ? interpreter.returned : null;
+    } catch (final StackOverflowError error) {
+      throw new RuntimeError(caller, "Stack overflow.");
+    } finally {
+      interpreter.depth--;
+      if (Profiler.active) Profiler.pop();
+    }
+  }
+
+  // A function that returns a call to a Lox function may leave the call to be made here, in its
+  // place, so that tail calls run in a loop rather than deeper on the Java stack
+  private static Object trampoline(final Interpreter interpreter, Object result) {
+    while (result == Interpreter.TAIL_CALL) {
+      final LoxFunction function = interpreter.tail_function;
+      final LoxInstance receiver = interpreter.tail_receiver;
+      final Object[] arguments = interpreter.tail_arguments;
+      final Token caller = interpreter.tail_paren;
+      function.checkReceiver(receiver, caller);
+      if (!function.interpreted()) {
+        result = function.run(interpreter, receiver, arguments, caller);
+        continue;
+      }
+      final Environment environment = function.enter(receiver);
+      for (int i = 0; i < arguments.length; i++) function.define(environment, i, arguments[i]);
+      result = function.execute(interpreter, environment, receiver, caller);
     }
-    if (type == LoxFunctionType.INITIALIZER) return _this;
-    return null;
+    return result;
   }
 
   @Override
@@ -1,31 +1,45 @@
-
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 class LoxInstance {
+  private static final Object[] NO_VALUES = new Object[0];
+
   protected LoxClass _class;
-  private final Map<String, Object> fields = new HashMap<>();
+  // Field values, laid out by the shape
+  private Shape shape;
+  private Object[] values = NO_VALUES;
+  // The method most recently read off this instance, bound, so reading it again allocates nothing
+  private LoxFunction bound_method;
   protected final Interpreter interpreter;
 
   LoxInstance(final LoxClass _class, final Interpreter interpreter) {
     this._class = _class;
     this.interpreter = interpreter;
+    // A class is its own class, and starts from a root of its own for its static fields
+    this.shape = _class == null ? new Shape() : _class.root_shape;
   }
 
   Object get(final Token name) {
-    if (name.lexeme.equals("__class__")) return (LoxInstance)_class;
-    if (name.lexeme.equals("name") && this instanceof LoxClass) return _class.name;
-    if (fields.containsKey(name.lexeme)) {
-      return fields.get(name.lexeme);
-    }
-    final LoxFunction method = _class.findMethod(name.lexeme);
-    if (method != null) {
-      final LoxFunction bound_method = method.bind(this);
-      if (method.type == LoxFunctionType.INSTANCE_GETTER || method.type == LoxFunctionType.STATIC_GETTER)
-        return bound_method.call(_class.interpreter, new ArrayList<Object>(), name);
+    return get(name, null);
+  }
+
+  private PropertyCache.Entry lookup(final String name, final PropertyCache cache) {
+    Metrics.property_lookups.increment();
+    return cache == null
+      ? new PropertyCache.Entry(shape, _class, name, this instanceof LoxClass)
+      : cache.find(this, shape, name);
+  }
+
+  Object get(final Token name, final PropertyCache cache) {
+    final PropertyCache.Entry entry = lookup(name.lexeme, cache);
+    if (entry.is_special) return name.lexeme.equals("__class__") ? (LoxInstance)_class : _class.name;
+    if (entry.slot >= 0) return values[entry.slot];
+    if (entry.method != null) {
+      if (entry.isGetter())
+        return entry.method.invoke0(_class.interpreter, this, name);
+      if (bound_method == null || !bound_method.isBoundFrom(entry.method))
+        bound_method = entry.method.bind(this);
       return bound_method;
     }
     // Lastly, try the superclass static fields
@@ -36,16 +50,34 @@ class LoxInstance {
     throw new RuntimeError(name, "Undefined property '" + name.lexeme + "' for class " + _class.name);
   }
 
+  // The method a call like instance.name() would call, if the property is a plain method rather
+  // than a field or getter, so that the caller can invoke it without binding it first
+  LoxFunction method(final Token name, final PropertyCache cache) {
+    final PropertyCache.Entry entry = lookup(name.lexeme, cache);
+    if (entry.is_special || entry.slot >= 0 || entry.isGetter()) return null;
+    return entry.method;
+  }
+
   void set(final Token name, final Object value) {
-    if (!Lox.allowFieldCreation && !fields.containsKey(name.lexeme)) {
+    set(name, value, null);
+  }
+
+  void set(final Token name, final Object value, final PropertyCache cache) {
+    final PropertyCache.Entry entry = lookup(name.lexeme, cache);
+    if (!Lox.allowFieldCreation && entry.slot < 0) {
       throw new RuntimeError(name, "Undefined property '" + name.lexeme + "' assigned to.");
     }
-    final LoxFunction method = _class.findMethod(name.lexeme);
-    if (method != null &&
-       (method.type == LoxFunctionType.INSTANCE_GETTER || method.type == LoxFunctionType.STATIC_GETTER)) {
+    if (entry.isGetter()) {
       throw new RuntimeError(name, "Cannot assign to getter.");
     }
-    fields.put(name.lexeme, value);
+    if (entry.slot >= 0) {
+      values[entry.slot] = value;
+      return;
+    }
+    if (entry.added == null) entry.added = shape.add(name.lexeme);
+    if (shape.size == values.length) values = Arrays.copyOf(values, Math.max(4, 2 * values.length));
+    values[shape.size] = value;
+    shape = entry.added;
   }
 
   @Override
@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Map;
+
+// What jlox exposes over JMX, as com.craftinginterpreters.lox:type=Metrics. Counts are totals for
+// every interpreter in the process since it started or was last reset.
+public interface LoxMetricsMXBean {
+  long getFunctionCalls();
+  long getInstancesCreated();
+  long getEnvironmentsAllocated();
+  long getPropertyLookups();
+  long getRuntimeErrors();
+  // Calls per native function, by name
+  Map<String, Long> getNativeCalls();
+  void reset();
+}
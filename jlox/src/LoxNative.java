@@ -3,20 +3,60 @@ package com.craftinginterpreters.lox;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
-
-interface Func {
-  Object call(final Interpreter interpreter, final List<Object> arguments, final Token caller);
-}
+import java.util.concurrent.atomic.LongAdder;
 
 class LoxNative implements LoxCallable {
+  // Natives take their arguments directly, with one interface per arity
+  interface Func0 {
+    Object call(final Interpreter interpreter, final Token caller);
+  }
+
+  interface Func1 {
+    Object call(final Interpreter interpreter, final Object a, final Token caller);
+  }
+
+  interface Func2 {
+    Object call(final Interpreter interpreter, final Object a, final Object b, final Token caller);
+  }
+
+  interface Func3 {
+    Object call(final Interpreter interpreter, final Object a, final Object b, final Object c, final Token caller);
+  }
+
   final String name;
   final int arity;
-  final Func func;
-
-  LoxNative(final String name, final int arity, final Func func) {
+  // Only the field matching the arity is set
+  private final Func0 func0;
+  private final Func1 func1;
+  private final Func2 func2;
+  private final Func3 func3;
+  private final LongAdder calls;
+
+  private LoxNative(final String name, final int arity, final Func0 func0, final Func1 func1, final Func2 func2,
+                    final Func3 func3) {
     this.name = name;
     this.arity = arity;
-    this.func = func;
+    this.func0 = func0;
+    this.func1 = func1;
+    this.func2 = func2;
+    this.func3 = func3;
+    this.calls = Metrics.nativeCalls(name);
+  }
+
+  LoxNative(final String name, final Func0 func) {
+    this(name, 0, func, null, null, null);
+  }
+
+  LoxNative(final String name, final Func1 func) {
+    this(name, 1, null, func, null, null);
+  }
+
+  LoxNative(final String name, final Func2 func) {
+    this(name, 2, null, null, func, null);
+  }
+
+  LoxNative(final String name, final Func3 func) {
+    this(name, 3, null, null, null, func);
   }
 
   @Override
@@ -24,11 +64,44 @@ class LoxNative implements LoxCallable {
     return arity;
   }
 
+  private void checkArity(final int count, final Token caller) {
+    if (count != this.arity)
+      throw new RuntimeError(caller, "Wrong number of arguments, expected " + arity + ", got " + count);
+  }
+
+  @Override
+  public Object call(final Interpreter interpreter, final Object[] arguments, final Token caller) {
+    checkArity(arguments.length, caller);
+    switch (arity) {
+      case 0: return call0(interpreter, caller);
+      case 1: return call1(interpreter, arguments[0], caller);
+      case 2: return call2(interpreter, arguments[0], arguments[1], caller);
+      default: return call3(interpreter, arguments[0], arguments[1], arguments[2], caller);
+    }
+  }
+
+  @Override
+  public Object call0(final Interpreter interpreter, final Token caller) {
+    calls.increment();
+    return func0.call(interpreter, caller);
+  }
+
+  @Override
+  public Object call1(final Interpreter interpreter, final Object a, final Token caller) {
+    calls.increment();
+    return func1.call(interpreter, a, caller);
+  }
+
+  @Override
+  public Object call2(final Interpreter interpreter, final Object a, final Object b, final Token caller) {
+    calls.increment();
+    return func2.call(interpreter, a, b, caller);
+  }
+
   @Override
-  public Object call(final Interpreter interpreter, final List<Object> arguments, final Token caller) {
-    if (arguments.size() != this.arity)
-      throw new RuntimeError(caller, "Wrong number of arguments, expected " + arity + ", got " + arguments.size());
-    return func.call(interpreter, arguments, caller);
+  public Object call3(final Interpreter interpreter, final Object a, final Object b, final Object c, final Token caller) {
+    calls.increment();
+    return func3.call(interpreter, a, b, c, caller);
   }
 
   @Override
@@ -39,64 +112,62 @@ class LoxNative implements LoxCallable {
   // Below: declare native functions
   public static List<LoxNative> getNativeFunctions() {
     ArrayList<LoxNative> result = new ArrayList<>();
-    result.add(new LoxNative("clock", 0, (interpreter, arguments, caller) -> {
+    result.add(new LoxNative("clock", (interpreter, caller) -> {
       return (double)System.currentTimeMillis() / 1000.0;
     }));
 
-    result.add(new LoxNative("print", 1, (interpreter, arguments, caller) -> {
-      System.out.print(Interpreter.stringify(arguments.get(0)));
+    result.add(new LoxNative("print", (interpreter, value, caller) -> {
+      System.out.print(Interpreter.stringify(value));
       return null;
     }));
-    result.add(new LoxNative("println", 1, (interpreter, arguments, caller) -> {
-      System.out.println(Interpreter.stringify(arguments.get(0)));
+    result.add(new LoxNative("println", (interpreter, value, caller) -> {
+      System.out.println(Interpreter.stringify(value));
       return null;
     }));
 
-    result.add(new LoxNative("random", 2, (interpreter, arguments, caller) -> {
-      final double a = (Double)arguments.get(0), b = (Double)arguments.get(1);
+    result.add(new LoxNative("random", (interpreter, low, high, caller) -> {
+      final double a = (Double) low, b = (Double) high;
       return Math.random() * (b - a) + a;
     }));
 
-    result.add(new LoxNative("assert", 1, (interpreter, arguments, caller) -> {
-      if (!Interpreter.isTruthy(arguments.get(0)))
+    result.add(new LoxNative("assert", (interpreter, value, caller) -> {
+      if (!Interpreter.isTruthy(value))
         throw new RuntimeError(caller, "Assertion failed");
       return null;
     }));
 
-    result.add(new LoxNative("nextLine", 0, (interpreter, arguments, caller) -> {
+    result.add(new LoxNative("nextLine", (interpreter, caller) -> {
       final java.util.Scanner scanner = interpreter.system_in;
       return scanner.hasNextLine() ? scanner.nextLine() : null;
     }));
 
-    result.add(new LoxNative("nextInt", 0, (interpreter, arguments, caller) -> {
+    result.add(new LoxNative("nextInt", (interpreter, caller) -> {
       final java.util.Scanner scanner = interpreter.system_in;
       return scanner.hasNextInt() ? Double.valueOf(scanner.nextInt()) : null;
     }));
 
-    result.add(new LoxNative("nextDouble", 0, (interpreter, arguments, caller) -> {
+    result.add(new LoxNative("nextDouble", (interpreter, caller) -> {
       final java.util.Scanner scanner = interpreter.system_in;
       return scanner.hasNextDouble() ? Double.valueOf(scanner.nextDouble()) : null;
     }));
 
-    result.add(new LoxNative("substr", 3, (interpreter, arguments, caller) -> {
-      final Object first = arguments.get(0), second = arguments.get(1), third = arguments.get(2);
+    result.add(new LoxNative("substr", (interpreter, first, second, third, caller) -> {
       if (!(first instanceof String))
         throw new RuntimeError(caller, "Expected String as first argument to substr, got " + Interpreter.getClassName(first));
       if (!(second instanceof Double))
         throw new RuntimeError(caller, "Expected Double as second argument to substr, got " + Interpreter.getClassName(second));
       if (!(third instanceof Double))
         throw new RuntimeError(caller, "Expected Double as third argument to substr, got " + Interpreter.getClassName(third));
-      final String string = (String)arguments.get(0);
-      final int start = (int) Math.floor((Double) arguments.get(1));
-      final int end = (int) Math.floor((Double) arguments.get(2));
+      final String string = (String) first;
+      final int start = (int) Math.floor((Double) second);
+      final int end = (int) Math.floor((Double) third);
       return string.substring(start, end);
     }));
 
-    result.add(new LoxNative("length", 1, (interpreter, arguments, caller) -> {
-      final Object string = arguments.get(0);
-      if (!(string instanceof String))
-        throw new RuntimeError(caller, "Expected String as first argument to length, got " + Interpreter.getClassName(string));
-      return Double.valueOf(((String) string).length());
+    result.add(new LoxNative("length", (interpreter, value, caller) -> {
+      if (!(value instanceof String))
+        throw new RuntimeError(caller, "Expected String as first argument to length, got " + Interpreter.getClassName(value));
+      return Double.valueOf(((String) value).length());
     }));
 
     return result;
@@ -0,0 +1,86 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counters for LoxMetricsMXBean. They are always on, so they are LongAdders: an increment is a
+// single uncontended add, and embedders running interpreters on several threads do not contend.
+class Metrics implements LoxMetricsMXBean {
+  static final LongAdder function_calls = new LongAdder();
+  static final LongAdder instances_created = new LongAdder();
+  static final LongAdder environments_allocated = new LongAdder();
+  static final LongAdder property_lookups = new LongAdder();
+  static final LongAdder runtime_errors = new LongAdder();
+  private static final Map<String, LongAdder> native_calls = new ConcurrentHashMap<>();
+
+  private static boolean registered = false;
+
+  // The counter a native function counts its calls in, shared by natives of the same name
+  static LongAdder nativeCalls(final String name) {
+    return native_calls.computeIfAbsent(name, key -> new LongAdder());
+  }
+
+  // Called by every Interpreter; the platform MBean server gets one bean for the whole process.
+  // Starting the server takes longer than many scripts run, so it happens in the background.
+  static synchronized void register() {
+    if (registered) return;
+    registered = true;
+    final Thread thread = new Thread(() -> {
+      try {
+        ManagementFactory.getPlatformMBeanServer()
+          .registerMBean(new Metrics(), new ObjectName("com.craftinginterpreters.lox:type=Metrics"));
+      } catch (final JMException e) {
+        // Metrics are a convenience; the interpreter runs the same without them
+      }
+    }, "lox-metrics");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public long getFunctionCalls() {
+    return function_calls.sum();
+  }
+
+  @Override
+  public long getInstancesCreated() {
+    return instances_created.sum();
+  }
+
+  @Override
+  public long getEnvironmentsAllocated() {
+    return environments_allocated.sum();
+  }
+
+  @Override
+  public long getPropertyLookups() {
+    return property_lookups.sum();
+  }
+
+  @Override
+  public long getRuntimeErrors() {
+    return runtime_errors.sum();
+  }
+
+  @Override
+  public Map<String, Long> getNativeCalls() {
+    final Map<String, Long> calls = new TreeMap<>();
+    native_calls.forEach((name, count) -> calls.put(name, count.sum()));
+    return calls;
+  }
+
+  @Override
+  public void reset() {
+    function_calls.reset();
+    instances_created.reset();
+    environments_allocated.reset();
+    property_lookups.reset();
+    runtime_errors.reset();
+    native_calls.values().forEach(LongAdder::reset);
+  }
+}
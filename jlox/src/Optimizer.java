@@ -0,0 +1,655 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Runs between the resolver and the interpreter (or the bytecode compiler). Folds operators whose
+// operands are literals and drops code that can never run: branches on a literal condition, loops
+// that never start, statements after a return, break or continue, and expression statements
+// without an effect. Operations that would fail at runtime (1 / 0, -"a", nil < 1) are left alone
+// so they still report their error when, and only if, they run.
+//
+// AST fields are final, so a node whose children change is rebuilt, keeping the resolver's
+// annotations. Statement lists are rewritten in place; a removed statement becomes null, the
+// no-op every consumer of the tree already accepts.
+//
+// Counted loops, which is what 'for' desugars into, get their bound evaluated once when nothing in
+// the loop can change it, and so do arithmetic expressions in their body that cannot change.
+// Division by a power of two becomes multiplication.
+//
+// Calls to small global functions that are never rebound are inlined for the tree-walker, once
+// their declaration has run: the call keeps the function's returned expression, rewritten to read
+// the parameters from the captures the interpreter puts the arguments in.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  // The most nodes a returned expression can have to be inlined
+  private static final int MAX_INLINED_SIZE = 24;
+
+  // What a loop does that could change the value of an expression in it
+  private static class Effects {
+    final Set<String> assigned = new HashSet<>();
+    boolean runs_code = false;
+  }
+
+  // The loops being optimized, innermost last, and the one finished most recently
+  private final List<Effects> loops = new ArrayList<>();
+  private Effects finished = null;
+
+  // Functions that may be inlined, as Resolver.constantFunctions finds them, and the inlined
+  // expressions of those declared so far
+  private final Map<String, Stmt.Function> functions;
+  private final Map<String, Expr> inlined = new HashMap<>();
+  // Set while the expression of the function being inlined is rewritten
+  private Stmt.Function inlining = null;
+  private boolean can_inline;
+  private int inlined_size;
+
+  Optimizer(final Map<String, Stmt.Function> functions) {
+    this.functions = functions;
+  }
+
+  void optimize(final List<Stmt> statements) {
+    boolean reachable = true;
+    for (int i = 0; i < statements.size(); i++) {
+      final Stmt statement = reachable ? optimize(statements.get(i)) : null;
+      statements.set(i, statement);
+      if (statement instanceof Stmt.Return || statement instanceof Stmt.Break || statement instanceof Stmt.Continue)
+        reachable = false;
+    }
+  }
+
+  private Stmt optimize(final Stmt stmt) {
+    return stmt == null ? null : stmt.accept(this);
+  }
+
+  private Expr optimize(final Expr expr) {
+    if (expr == null) return null;
+    inlined_size++;
+    return expr.accept(this);
+  }
+
+  private static boolean isLiteral(final Expr expr) {
+    return expr instanceof Expr.Literal;
+  }
+
+  private static Object value(final Expr expr) {
+    return ((Expr.Literal) expr).value;
+  }
+
+  // Calls, property gets (which may run a getter), super and classes (static blocks) run code
+  // that can assign any global
+  private void runsCode() {
+    for (final Effects loop : loops) loop.runs_code = true;
+  }
+
+  @Override
+  public Expr visitLiteralExpr(final Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitGroupingExpr(final Expr.Grouping expr) {
+    final Expr expression = optimize(expr.expression);
+    if (isLiteral(expression)) return expression;
+    return expression == expr.expression ? expr : new Expr.Grouping(expression);
+  }
+
+  @Override
+  public Expr visitUnaryExpr(final Expr.Unary expr) {
+    final Expr right = optimize(expr.right);
+    if (isLiteral(right)) {
+      final Object value = value(right);
+      if (expr.operator.type == TokenType.BANG) return new Expr.Literal(!Interpreter.isTruthy(value));
+      if (expr.operator.type == TokenType.MINUS && value instanceof Double) return new Expr.Literal(-(double) value);
+    }
+    return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitBinaryExpr(final Expr.Binary expr) {
+    final Expr left = optimize(expr.left), right = optimize(expr.right);
+    if (isLiteral(left) && isLiteral(right)) {
+      final Object folded = fold(expr.operator.type, value(left), value(right));
+      if (folded != null) return new Expr.Literal(folded);
+    }
+    if (expr.operator.type == TokenType.SLASH && isLiteral(right) && isPowerOfTwo(value(right))) {
+      // x / 2^k is exactly x * 2^-k. The '*' keeps the '/' lexeme and position, so an error about
+      // the left operand reads as before.
+      final Token operator = expr.operator;
+      final Token multiply = new Token(TokenType.STAR, operator.lexeme, null, operator.line,
+                                       operator.start_column, operator.end_column);
+      return new Expr.Binary(left, multiply, new Expr.Literal(1 / (double) value(right)));
+    }
+    return left == expr.left && right == expr.right ? expr : new Expr.Binary(left, expr.operator, right);
+  }
+
+  // Whether value is a number whose reciprocal is exact, a normal power of two
+  private static boolean isPowerOfTwo(final Object value) {
+    if (!(value instanceof Double)) return false;
+    final double number = (double) value;
+    final int exponent = Math.getExponent(number);
+    return exponent >= Double.MIN_EXPONENT && exponent <= Double.MAX_EXPONENT
+      && Math.abs(number) == Math.scalb(1.0, exponent);
+  }
+
+  // The value of a binary operator on two literals, as the interpreter computes it, or null when
+  // the operation would fail (or produce nil, which no binary operator does)
+  private static Object fold(final TokenType operator, final Object left, final Object right) {
+    if (operator == TokenType.EQUAL_EQUAL) return Interpreter.isEqual(left, right);
+    if (operator == TokenType.BANG_EQUAL) return !Interpreter.isEqual(left, right);
+    if (operator == TokenType.PLUS && (left instanceof String || right instanceof String))
+      return Interpreter.stringify(left) + Interpreter.stringify(right);
+    if (!(left instanceof Double && right instanceof Double)) return null;
+    final double a = (double) left, b = (double) right;
+    switch (operator) {
+      case PLUS: return a + b;
+      case MINUS: return a - b;
+      case STAR: return a * b;
+      case SLASH: return b == 0.0 ? null : (Object) (a / b);
+      case GREATER: return a > b;
+      case GREATER_EQUAL: return a >= b;
+      case LESS: return a < b;
+      case LESS_EQUAL: return a <= b;
+    }
+    return null;
+  }
+
+  @Override
+  public Expr visitTernaryExpr(final Expr.Ternary expr) {
+    final Expr condition = optimize(expr.condition);
+    if (isLiteral(condition))
+      return Interpreter.isTruthy(value(condition)) ? optimize(expr.true_expr) : optimize(expr.false_expr);
+    final Expr true_expr = optimize(expr.true_expr), false_expr = optimize(expr.false_expr);
+    return condition == expr.condition && true_expr == expr.true_expr && false_expr == expr.false_expr
+      ? expr : new Expr.Ternary(condition, true_expr, false_expr);
+  }
+
+  @Override
+  public Expr visitLogicalExpr(final Expr.Logical expr) {
+    final Expr left = optimize(expr.left);
+    if (isLiteral(left)) {
+      // 'or' stops at a truthy left operand and 'and' at a falsey one, which is then the result
+      final boolean stops = Interpreter.isTruthy(value(left)) == (expr.operator.type == TokenType.OR);
+      return stops ? left : optimize(expr.right);
+    }
+    final Expr right = optimize(expr.right);
+    return left == expr.left && right == expr.right ? expr : new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitCommaExpr(final Expr.Comma expr) {
+    final Expr left = optimize(expr.left), right = optimize(expr.right);
+    if (isLiteral(left)) return right;
+    return left == expr.left && right == expr.right ? expr : new Expr.Comma(left, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(final Expr.Variable expr) {
+    if (inlining == null) return expr;
+    if (expr.is_global) {
+      if (expr.name.lexeme.equals(inlining.name.lexeme)) can_inline = false; // Recursive
+      return expr;
+    }
+    // A top-level function has no captures, so its locals are its parameters
+    final Expr.Variable parameter = new Expr.Variable(expr.name);
+    parameter.is_global = false;
+    parameter.is_upvalue = true;
+    parameter.slot = expr.slot;
+    return parameter;
+  }
+
+  @Override
+  public Expr visitAssignExpr(final Expr.Assign expr) {
+    for (final Effects loop : loops) loop.assigned.add(expr.name.lexeme);
+    if (inlining != null && !expr.is_global) can_inline = false; // Assigns a parameter
+    return assign(expr, optimize(expr.value));
+  }
+
+  private static Expr.Assign assign(final Expr.Assign expr, final Expr value) {
+    if (value == expr.value) return expr;
+    final Expr.Assign result = new Expr.Assign(expr.name, value);
+    result.depth = expr.depth;
+    result.slot = expr.slot;
+    result.is_global = expr.is_global;
+    result.is_upvalue = expr.is_upvalue;
+    result.is_boxed = expr.is_boxed;
+    return result;
+  }
+
+  @Override
+  public Expr visitCallExpr(final Expr.Call expr) {
+    runsCode();
+    // The arguments are copied on change, as an inlined function's call sites must stay as they are
+    List<Expr> arguments = expr.arguments;
+    for (int i = 0; i < arguments.size(); i++) {
+      final Expr argument = optimize(arguments.get(i));
+      if (argument == arguments.get(i)) continue;
+      if (arguments == expr.arguments) arguments = new ArrayList<>(arguments);
+      arguments.set(i, argument);
+    }
+    final Expr callee = optimize(expr.callee);
+    final Expr.Call result = callee == expr.callee && arguments == expr.arguments
+      ? expr : new Expr.Call(callee, expr.paren, arguments);
+    if (callee instanceof Expr.Variable && ((Expr.Variable) callee).is_global) {
+      final String name = ((Expr.Variable) callee).name.lexeme;
+      if (inlined.containsKey(name) && functions.get(name).params.size() == arguments.size())
+        result.inlined = inlined.get(name);
+    }
+    return result;
+  }
+
+  @Override
+  public Expr visitGetExpr(final Expr.Get expr) {
+    runsCode();
+    final Expr object = optimize(expr.object);
+    return object == expr.object ? expr : new Expr.Get(object, expr.name);
+  }
+
+  @Override
+  public Expr visitSetExpr(final Expr.Set expr) {
+    final Expr object = optimize(expr.object), value = optimize(expr.value);
+    return object == expr.object && value == expr.value ? expr : new Expr.Set(object, expr.name, value);
+  }
+
+  @Override
+  public Expr visitThisExpr(final Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitSuperExpr(final Expr.Super expr) {
+    runsCode();
+    return expr;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(final Stmt.Expression stmt) {
+    final Expr expression = optimize(stmt.expression);
+    if (expression == null || isLiteral(expression)) return null;
+    return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitVarStmt(final Stmt.Var stmt) {
+    return var(stmt, optimize(stmt.initializer));
+  }
+
+  private static Stmt.Var var(final Stmt.Var stmt, final Expr initializer) {
+    if (initializer == stmt.initializer) return stmt;
+    final Stmt.Var result = new Stmt.Var(stmt.name, initializer);
+    result.is_boxed = stmt.is_boxed;
+    return result;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(final Stmt.Block stmt) {
+    optimize(stmt.statements);
+    return hoistBound(stmt);
+  }
+
+  // A counted loop is the block 'for' desugars into, { var i = start; while (i < bound) body },
+  // with an increment. When nothing in the loop can change the bound it is evaluated once, into a
+  // new local declared after i (slot 1). Either the bound is on the left and evaluated first
+  // anyway, or only the read of i, which cannot fail, comes before it, so errors are unchanged.
+  // Invariant arithmetic in the body then gets locals of its own, see BodyHoister.
+  private Stmt hoistBound(final Stmt.Block block) {
+    final List<Stmt> statements = block.statements;
+    if (statements.size() != 2 || !(statements.get(0) instanceof Stmt.Var) || !(statements.get(1) instanceof Stmt.While))
+      return block;
+    final Stmt.Var counter = (Stmt.Var) statements.get(0);
+    final Stmt.While loop = (Stmt.While) statements.get(1);
+    if (counter.initializer == null || loop.increment == null) return block;
+    final List<Stmt> hoisted = new ArrayList<>(Arrays.asList(counter));
+    Expr condition = loop.condition;
+    if (condition instanceof Expr.Binary) {
+      final Expr.Binary binary = (Expr.Binary) condition;
+      final boolean hoist_left = isBound(binary.left, finished);
+      if (hoist_left || isCounter(binary.left) && isBound(binary.right, finished)) {
+        final Token operator = binary.operator;
+        final Token name = new Token(TokenType.IDENTIFIER, "bound", null, operator.line, operator.start_column, operator.end_column);
+        final Expr.Variable bound = local(name, 0, 1);
+        condition = hoist_left
+          ? new Expr.Binary(bound, operator, binary.right)
+          : new Expr.Binary(binary.left, operator, bound);
+        hoisted.add(new Stmt.Var(name, hoist_left ? binary.left : binary.right));
+      }
+    }
+    final Stmt body = new BodyHoister(finished, hoisted).hoist(loop.body);
+    if (hoisted.size() == 1) return block;
+    hoisted.add(new Stmt.While(condition, body, loop.increment));
+    return new Stmt.Block(hoisted);
+  }
+
+  private static Expr.Variable local(final Token name, final int depth, final int slot) {
+    final Expr.Variable variable = new Expr.Variable(name);
+    variable.is_global = false;
+    variable.depth = depth;
+    variable.slot = slot;
+    return variable;
+  }
+
+  private static boolean isCounter(final Expr expr) {
+    if (!(expr instanceof Expr.Variable)) return false;
+    final Expr.Variable variable = (Expr.Variable) expr;
+    return !variable.is_global && !variable.is_upvalue && variable.depth == 0 && variable.slot == 0;
+  }
+
+  // A bound worth hoisting computes something, rather than just reading a variable
+  private static boolean isBound(final Expr expr, final Effects loop) {
+    if (expr instanceof Expr.Grouping) return isBound(((Expr.Grouping) expr).expression, loop);
+    return (expr instanceof Expr.Binary || expr instanceof Expr.Unary) && isInvariant(expr, loop, 0);
+  }
+
+  // Whether expr always has the same value in the loop: it only reads variables, and none that
+  // the loop assigns. Boxed locals can also be assigned by closures, and globals by any code the
+  // loop runs. Read from 'depth' scopes inside the loop's block, a local must also be declared
+  // outside them, since the body's own locals are declared again in every iteration.
+  private static boolean isInvariant(final Expr expr, final Effects loop, final int depth) {
+    if (expr instanceof Expr.Literal) return true;
+    if (expr instanceof Expr.Grouping) return isInvariant(((Expr.Grouping) expr).expression, loop, depth);
+    if (expr instanceof Expr.Unary) return isInvariant(((Expr.Unary) expr).right, loop, depth);
+    if (expr instanceof Expr.Binary)
+      return isInvariant(((Expr.Binary) expr).left, loop, depth) && isInvariant(((Expr.Binary) expr).right, loop, depth);
+    if (expr instanceof Expr.Variable) {
+      final Expr.Variable variable = (Expr.Variable) expr;
+      if (variable.is_boxed || variable.is_global && loop.runs_code) return false;
+      if (!variable.is_global && !variable.is_upvalue && variable.depth < depth) return false;
+      return !loop.assigned.contains(variable.name.lexeme);
+    }
+    return false;
+  }
+
+  // Moves invariant arithmetic out of a counted loop's body. Each expression gets a local in the
+  // loop's block, after i and the bound, that starts out nil; the body reads it as
+  // 'local or (local = expression)'. The expression is still first evaluated where it was, so
+  // errors are unchanged, and only once per run of the loop. Only +, -, * and / are hoisted: their
+  // results are numbers or strings, which are never falsey, so the local is not computed again.
+  // Function and class declarations in the body are left alone.
+  private static class BodyHoister implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // Fewer operators than this cost no more than the check that replaces them
+    private static final int MIN_HOISTED_SIZE = 2;
+
+    private final Effects loop;
+    // The loop's block, to which the new locals are added
+    private final List<Stmt> block;
+    // Scopes between the code being rewritten and the loop's block
+    private int depth = 0;
+
+    BodyHoister(final Effects loop, final List<Stmt> block) {
+      this.loop = loop;
+      this.block = block;
+    }
+
+    Stmt hoist(final Stmt stmt) {
+      return stmt == null ? null : stmt.accept(this);
+    }
+
+    private Expr hoist(final Expr expr) {
+      if (expr == null) return null;
+      if (isHoisted(expr) && size(expr) >= MIN_HOISTED_SIZE && isInvariant(expr, loop, depth)) {
+        final Token operator = ((Expr.Binary) expr).operator;
+        final Token name = new Token(TokenType.IDENTIFIER, "invariant", null, operator.line, operator.start_column, operator.end_column);
+        final int slot = block.size();
+        block.add(new Stmt.Var(name, new Expr.Literal(null)));
+        final Expr.Assign store = new Expr.Assign(name, expr);
+        store.is_global = false;
+        store.depth = depth;
+        store.slot = slot;
+        final Token or = new Token(TokenType.OR, "or", null, operator.line, operator.start_column, operator.end_column);
+        return new Expr.Logical(local(name, depth, slot), or, store);
+      }
+      return expr.accept(this);
+    }
+
+    private static boolean isHoisted(final Expr expr) {
+      if (!(expr instanceof Expr.Binary)) return false;
+      switch (((Expr.Binary) expr).operator.type) {
+        case PLUS: case MINUS: case STAR: case SLASH: return true;
+      }
+      return false;
+    }
+
+    // The number of operators in an expression made of operators, literals and variables
+    private static int size(final Expr expr) {
+      if (expr instanceof Expr.Grouping) return size(((Expr.Grouping) expr).expression);
+      if (expr instanceof Expr.Unary) return 1 + size(((Expr.Unary) expr).right);
+      if (expr instanceof Expr.Binary) return 1 + size(((Expr.Binary) expr).left) + size(((Expr.Binary) expr).right);
+      return 0;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(final Expr.Binary expr) {
+      final Expr left = hoist(expr.left), right = hoist(expr.right);
+      return left == expr.left && right == expr.right ? expr : new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(final Expr.Grouping expr) {
+      final Expr expression = hoist(expr.expression);
+      return expression == expr.expression ? expr : new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(final Expr.Literal expr) {
+      return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(final Expr.Unary expr) {
+      final Expr right = hoist(expr.right);
+      return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCommaExpr(final Expr.Comma expr) {
+      final Expr left = hoist(expr.left), right = hoist(expr.right);
+      return left == expr.left && right == expr.right ? expr : new Expr.Comma(left, right);
+    }
+
+    @Override
+    public Expr visitTernaryExpr(final Expr.Ternary expr) {
+      final Expr condition = hoist(expr.condition), true_expr = hoist(expr.true_expr), false_expr = hoist(expr.false_expr);
+      return condition == expr.condition && true_expr == expr.true_expr && false_expr == expr.false_expr
+        ? expr : new Expr.Ternary(condition, true_expr, false_expr);
+    }
+
+    @Override
+    public Expr visitVariableExpr(final Expr.Variable expr) {
+      return expr;
+    }
+
+    @Override
+    public Expr visitAssignExpr(final Expr.Assign expr) {
+      return assign(expr, hoist(expr.value));
+    }
+
+    @Override
+    public Expr visitLogicalExpr(final Expr.Logical expr) {
+      final Expr left = hoist(expr.left), right = hoist(expr.right);
+      return left == expr.left && right == expr.right ? expr : new Expr.Logical(left, expr.operator, right);
+    }
+
+    // An inlined call's expression reads the call's arguments, not the loop's variables, so it is kept as it is
+    @Override
+    public Expr visitCallExpr(final Expr.Call expr) {
+      List<Expr> arguments = expr.arguments;
+      for (int i = 0; i < arguments.size(); i++) {
+        final Expr argument = hoist(arguments.get(i));
+        if (argument == arguments.get(i)) continue;
+        if (arguments == expr.arguments) arguments = new ArrayList<>(arguments);
+        arguments.set(i, argument);
+      }
+      final Expr callee = hoist(expr.callee);
+      if (callee == expr.callee && arguments == expr.arguments) return expr;
+      final Expr.Call result = new Expr.Call(callee, expr.paren, arguments);
+      result.inlined = expr.inlined;
+      return result;
+    }
+
+    @Override
+    public Expr visitGetExpr(final Expr.Get expr) {
+      final Expr object = hoist(expr.object);
+      return object == expr.object ? expr : new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitSetExpr(final Expr.Set expr) {
+      final Expr object = hoist(expr.object), value = hoist(expr.value);
+      return object == expr.object && value == expr.value ? expr : new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitThisExpr(final Expr.This expr) {
+      return expr;
+    }
+
+    @Override
+    public Expr visitSuperExpr(final Expr.Super expr) {
+      return expr;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(final Stmt.Expression stmt) {
+      final Expr expression = hoist(stmt.expression);
+      return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitVarStmt(final Stmt.Var stmt) {
+      return var(stmt, hoist(stmt.initializer));
+    }
+
+    @Override
+    public Stmt visitBlockStmt(final Stmt.Block stmt) {
+      if (stmt.has_scope) depth++;
+      for (int i = 0; i < stmt.statements.size(); i++) stmt.statements.set(i, hoist(stmt.statements.get(i)));
+      if (stmt.has_scope) depth--;
+      return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(final Stmt.If stmt) {
+      final Expr condition = hoist(stmt.condition);
+      final Stmt true_branch = hoist(stmt.true_branch), false_branch = hoist(stmt.false_branch);
+      return condition == stmt.condition && true_branch == stmt.true_branch && false_branch == stmt.false_branch
+        ? stmt : new Stmt.If(condition, true_branch, false_branch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(final Stmt.While stmt) {
+      final Expr condition = hoist(stmt.condition), increment = hoist(stmt.increment);
+      final Stmt body = hoist(stmt.body);
+      return condition == stmt.condition && body == stmt.body && increment == stmt.increment
+        ? stmt : new Stmt.While(condition, body, increment);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(final Stmt.Function stmt) {
+      return stmt;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(final Stmt.Return stmt) {
+      return ret(stmt, hoist(stmt.value));
+    }
+
+    @Override
+    public Stmt visitBreakStmt(final Stmt.Break stmt) {
+      return stmt;
+    }
+
+    @Override
+    public Stmt visitContinueStmt(final Stmt.Continue stmt) {
+      return stmt;
+    }
+
+    @Override
+    public Stmt visitClassStmt(final Stmt.Class stmt) {
+      return stmt;
+    }
+  }
+
+  @Override
+  public Stmt visitIfStmt(final Stmt.If stmt) {
+    final Expr condition = optimize(stmt.condition);
+    // Branches are statements rather than declarations, so either can stand in for the 'if'
+    if (isLiteral(condition))
+      return Interpreter.isTruthy(value(condition)) ? optimize(stmt.true_branch) : optimize(stmt.false_branch);
+    final Stmt true_branch = optimize(stmt.true_branch), false_branch = optimize(stmt.false_branch);
+    return condition == stmt.condition && true_branch == stmt.true_branch && false_branch == stmt.false_branch
+      ? stmt : new Stmt.If(condition, true_branch, false_branch);
+  }
+
+  @Override
+  public Stmt visitWhileStmt(final Stmt.While stmt) {
+    final Effects loop = new Effects();
+    loops.add(loop);
+    final Expr condition = optimize(stmt.condition);
+    final boolean runs = !isLiteral(condition) || Interpreter.isTruthy(value(condition));
+    final Stmt body = runs ? optimize(stmt.body) : null;
+    final Expr increment = runs ? optimize(stmt.increment) : null;
+    loops.remove(loops.size() - 1);
+    finished = loop;
+    if (!runs) return null;
+    return condition == stmt.condition && body == stmt.body && increment == stmt.increment
+      ? stmt : new Stmt.While(condition, body, increment);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(final Stmt.Function stmt) {
+    optimize(stmt.body);
+    if (functions.get(stmt.name.lexeme) == stmt) inline(stmt);
+    return stmt;
+  }
+
+  // Makes calls from here on inline the function, if its body is a single small 'return value;'
+  // that neither calls the function itself nor assigns its parameters
+  private void inline(final Stmt.Function function) {
+    Stmt.Return body = null;
+    for (final Stmt statement : function.body) {
+      if (statement == null) continue;
+      if (body != null || !(statement instanceof Stmt.Return)) return;
+      body = (Stmt.Return) statement;
+    }
+    if (body == null || body.value == null) return;
+    inlining = function;
+    can_inline = true;
+    inlined_size = 0;
+    final Expr value = optimize(body.value);
+    inlining = null;
+    if (can_inline && inlined_size <= MAX_INLINED_SIZE) inlined.put(function.name.lexeme, value);
+  }
+
+  @Override
+  public Stmt visitReturnStmt(final Stmt.Return stmt) {
+    return ret(stmt, optimize(stmt.value));
+  }
+
+  private static Stmt.Return ret(final Stmt.Return stmt, final Expr value) {
+    if (value == stmt.value) return stmt;
+    final Stmt.Return result = new Stmt.Return(stmt.keyword, value);
+    result.is_tail_call = stmt.is_tail_call && value instanceof Expr.Call;
+    return result;
+  }
+
+  @Override
+  public Stmt visitBreakStmt(final Stmt.Break stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitContinueStmt(final Stmt.Continue stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitClassStmt(final Stmt.Class stmt) {
+    runsCode();
+    for (final Stmt.Function method : stmt.methods) optimize(method.body);
+    return stmt;
+  }
+}
@@ -207,24 +207,9 @@ class Parser {
     consume(RIGHT_PAREN, "Expect ')' after for clauses.");
     final Stmt body = parseStatement();
 
-    // De-sugar (NOTE: null represents a no-op)
-    final Token tmp_first = new Token(IDENTIFIER, "first_" + body.hashCode());
-    return new Stmt.Block(Arrays.asList(
-      init,
-      new Stmt.Var(tmp_first, new Expr.Literal(true)),
-      new Stmt.While(new Expr.Literal(true),
-        new Stmt.Block(Arrays.asList(
-          new Stmt.If(new Expr.Variable(tmp_first),
-            new Stmt.Expression(new Expr.Assign(tmp_first, new Expr.Literal(false))),
-            new Stmt.Expression(increment)
-          ),
-          new Stmt.If(new Expr.Unary(new Token(BANG, "!"), condition),
-            new Stmt.Break(null),
-            null
-          ),
-          body
-        )))
-    ));
+    // De-sugar into a while loop that evaluates the increment after the body, including after a
+    // 'continue' (NOTE: null represents a no-op)
+    return new Stmt.Block(Arrays.asList(init, new Stmt.While(condition, body, increment)));
   }
 
   private Stmt parseWhileStatement() {
@@ -232,7 +217,7 @@ class Parser {
     final Expr condition = parseExpression();
     consume(RIGHT_PAREN, "Expected ')' after while condition.");
     final Stmt body = parseStatement();
-    return new Stmt.While(condition, body);
+    return new Stmt.While(condition, body, null);
   }
 
   private Stmt parseIfStatement() {
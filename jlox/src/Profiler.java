@@ -0,0 +1,108 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+// A sampling profiler for Lox code. While it is active, calls to Lox functions keep a shadow stack
+// of the functions running, which a background thread samples at a fixed rate. At the end it
+// prints each function's self and total time, and writes the samples as collapsed stacks
+// ("<script>;caller;callee count" per line), which flamegraph.pl and speedscope read.
+class Profiler {
+  static boolean active = false;
+
+  // Written only by the interpreter's thread; depth is volatile so the sampler sees whole frames
+  private static Stmt.Function[] frames = new Stmt.Function[64];
+  private static volatile int depth = 0;
+
+  private static Thread sampler;
+  private static long interval;
+  // Samples per collapsed stack, only touched by the sampler until it has stopped
+  private static final Map<String, Integer> samples = new HashMap<>();
+
+  static void push(final Stmt.Function function) {
+    final int top = depth;
+    if (top == frames.length) frames = Arrays.copyOf(frames, 2 * top);
+    frames[top] = function;
+    depth = top + 1;
+  }
+
+  static void pop() {
+    depth = depth - 1;
+  }
+
+  static void start(final int rate) {
+    interval = 1_000_000_000L / rate;
+    active = true;
+    sampler = new Thread(Profiler::sample, "lox-profiler");
+    sampler.setDaemon(true);
+    sampler.start();
+  }
+
+  private static void sample() {
+    final StringBuilder stack = new StringBuilder();
+    while (!Thread.interrupted()) {
+      LockSupport.parkNanos(interval);
+      final int top = depth;
+      final Stmt.Function[] frames = Profiler.frames;
+      stack.setLength(0);
+      stack.append("<script>");
+      for (int i = 0; i < top && i < frames.length; i++) stack.append(';').append(label(frames[i]));
+      samples.merge(stack.toString(), 1, Integer::sum);
+    }
+  }
+
+  private static String label(final Stmt.Function function) {
+    return function == null ? "?" : function.name.lexeme + ":" + function.name.line;
+  }
+
+  // Stops sampling, writes the collapsed stacks to path and reports per-function times on stderr
+  static void finish(final String path) throws IOException {
+    active = false;
+    sampler.interrupt();
+    try {
+      sampler.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    final List<String> lines = new ArrayList<>();
+    final Map<String, Integer> self = new HashMap<>(), total = new HashMap<>();
+    int count = 0;
+    for (final Map.Entry<String, Integer> entry : samples.entrySet()) {
+      final String[] stack = entry.getKey().split(";");
+      final int n = entry.getValue();
+      lines.add(entry.getKey() + " " + n);
+      count += n;
+      self.merge(stack[stack.length - 1], n, Integer::sum);
+      // Recursive functions count once per sample
+      final Set<String> seen = new HashSet<>(Arrays.asList(stack));
+      for (final String function : seen) total.merge(function, n, Integer::sum);
+    }
+    lines.sort(null);
+    Files.write(Paths.get(path), lines, StandardCharsets.UTF_8);
+
+    final double millis = interval / 1e6;
+    System.err.println(String.format("%d samples every %.3f ms, collapsed stacks in %s", count, millis, path));
+    System.err.println(String.format("%12s %7s %12s %7s  %s", "self ms", "self", "total ms", "total", "function"));
+    final List<String> functions = new ArrayList<>(total.keySet());
+    functions.sort((a, b) -> {
+      final int by_self = Integer.compare(self.getOrDefault(b, 0), self.getOrDefault(a, 0));
+      return by_self != 0 ? by_self : Integer.compare(total.get(b), total.get(a));
+    });
+    for (final String function : functions) {
+      final int own = self.getOrDefault(function, 0), all = total.get(function);
+      System.err.println(String.format("%12.1f %6.1f%% %12.1f %6.1f%%  %s",
+        own * millis, 100.0 * own / Math.max(count, 1), all * millis, 100.0 * all / Math.max(count, 1), function));
+    }
+  }
+}
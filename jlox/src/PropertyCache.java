@@ -0,0 +1,41 @@
+package com.craftinginterpreters.lox;
+
+// An inline cache for one property access: what the property name resolves to on each of the
+// last few shapes seen there, so repeated accesses skip the field and method table lookups.
+// Shapes are immutable and each belongs to a single class, whose flattened method table is fixed
+// once the class is created, so entries never need to be invalidated.
+class PropertyCache {
+  static class Entry {
+    final Shape shape;
+    final boolean is_special;  // __class__, or name on a class, which shadow fields and methods
+    final int slot;            // -1 when the shape has no such field
+    final LoxFunction method;  // null when no class in the chain has such a method
+    Shape added;               // The shape after adding the field, once a set has done so
+
+    Entry(final Shape shape, final LoxClass _class, final String name, final boolean is_class) {
+      this.shape = shape;
+      this.is_special = name.equals("__class__") || (is_class && name.equals("name"));
+      this.slot = shape.indexOf(name);
+      this.method = _class.findMethod(name);
+    }
+
+    boolean isGetter() {
+      return method != null &&
+        (method.type == LoxFunctionType.INSTANCE_GETTER || method.type == LoxFunctionType.STATIC_GETTER);
+    }
+  }
+
+  // Sites that see more shapes than this are megamorphic and look every access up again
+  private static final int SIZE = 4;
+  private final Entry[] entries = new Entry[SIZE];
+  private int size = 0;
+
+  Entry find(final LoxInstance instance, final Shape shape, final String name) {
+    for (int i = 0; i < size; i++) {
+      if (entries[i].shape == shape) return entries[i];
+    }
+    final Entry entry = new Entry(shape, instance._class, name, instance instanceof LoxClass);
+    if (size < SIZE) entries[size++] = entry;
+    return entry;
+  }
+}
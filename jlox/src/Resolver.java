@@ -1,10 +1,13 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
-import javafx.util.Pair;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   private enum FunctionType {
@@ -30,8 +33,56 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     ACCESSED
   }
 
+  private static class Variable {
+    VariableState state;
+    final Token token;
+    final int slot;
+    // Closure analysis: a variable that is captured and can change afterwards is shared through a box
+    boolean initialized = true, captured = false, reassigned = false, captured_uninitialized = false;
+    Stmt declaration = null;
+    int param = -1;
+    final List<Expr> uses = new ArrayList<>();
+
+    Variable(final VariableState state, final Token token, final int slot) {
+      this.state = state;
+      this.token = token;
+      this.slot = slot;
+    }
+  }
+
+  // Where a local name lives: 'depth' environments up from the use, or in the current function's captures
+  private static class Location {
+    final Variable variable;
+    final int depth, slot;
+    final boolean is_upvalue;
+
+    Location(final Variable variable, final int depth, final int slot, final boolean is_upvalue) {
+      this.variable = variable;
+      this.depth = depth;
+      this.slot = slot;
+      this.is_upvalue = is_upvalue;
+    }
+  }
+
+  private static class FunctionScope {
+    final FunctionScope enclosing;
+    final int base; // Index of the function's outermost scope in 'scopes'
+    final Map<Variable, Integer> captures = new IdentityHashMap<>();
+    final List<Integer> capture_depths = new ArrayList<>(), capture_slots = new ArrayList<>();
+
+    FunctionScope(final FunctionScope enclosing, final int base) {
+      this.enclosing = enclosing;
+      this.base = base;
+    }
+  }
+
   private final Interpreter interpreter;
-  private final Stack<Map<String, Pair<VariableState, Token>>> scopes = new Stack<>();
+  private final Stack<Map<String, Variable>> scopes = new Stack<>();
+  private FunctionScope current_scope = null;
+  // Functions declared at the top level, and global names that are declared more than once or
+  // assigned, so that calls to the others are known to reach their declaration
+  private final Map<String, Stmt.Function> global_functions = new HashMap<>();
+  private final Set<String> rebound_globals = new HashSet<>();
 
   Resolver(final Interpreter interpreter) {
     this.interpreter = interpreter;
@@ -49,27 +100,87 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     for (final Stmt statement : statements) resolve(statement);
   }
 
-  private void resolveLocal(final Expr expr, final Token name) {
+  // The functions declared at the top level of what was resolved whose global is never bound to
+  // anything else, by name
+  Map<String, Stmt.Function> constantFunctions() {
+    final Map<String, Stmt.Function> functions = new HashMap<>(global_functions);
+    functions.keySet().removeAll(rebound_globals);
+    return functions;
+  }
+
+  private void bindGlobal(final Token name, final Stmt declaration) {
+    if (declaration instanceof Stmt.Function && !global_functions.containsKey(name.lexeme))
+      global_functions.put(name.lexeme, (Stmt.Function) declaration);
+    else
+      rebound_globals.add(name.lexeme);
+  }
+
+  // Returns null if the name is not declared in any enclosing scope, in which case it is global
+  private Location resolveLocal(final Token name) {
     for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(name.lexeme)) {
-        scopes.get(i).put(name.lexeme, new Pair<>(VariableState.ACCESSED, name));
-        interpreter.resolve(expr, scopes.size() - 1 - i);
-        return;
+      final Variable variable = scopes.get(i).get(name.lexeme);
+      if (variable != null) {
+        variable.state = VariableState.ACCESSED;
+        if (current_scope == null || i >= current_scope.base)
+          return new Location(variable, scopes.size() - 1 - i, variable.slot, false);
+        return new Location(variable, -1, capture(current_scope, variable, i), true);
       }
     }
     // Not found. Assume it is global.
+    return null;
+  }
+
+  // Returns the index of the variable declared in scopes[index] among the captures of function
+  private int capture(final FunctionScope function, final Variable variable, final int index) {
+    final Integer existing = function.captures.get(variable);
+    if (existing != null) return existing;
+    final FunctionScope enclosing = function.enclosing;
+    if (enclosing == null || index >= enclosing.base) {
+      // Copied from the environment the function is created in, one scope below its own
+      function.capture_depths.add(function.base - 1 - index);
+      function.capture_slots.add(variable.slot);
+    } else {
+      function.capture_depths.add(-1);
+      function.capture_slots.add(capture(enclosing, variable, index));
+    }
+    variable.captured = true;
+    if (!variable.initialized) variable.captured_uninitialized = true;
+    function.captures.put(variable, function.capture_slots.size() - 1);
+    return function.capture_slots.size() - 1;
+  }
+
+  private void beginFunction(final Stmt.Function function, final FunctionType type) {
+    current_scope = new FunctionScope(current_scope, scopes.size());
+    beginScope();
+    // Methods receive their instance (or class, if static) in the first slot
+    if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER)
+      scopes.peek().put("this", new Variable(VariableState.DEFINED, new Token(TokenType.IDENTIFIER, ""), 0));
+    for (int i = 0; i < function.params.size(); i++) {
+      final Variable variable = declare(function.params.get(i));
+      variable.declaration = function;
+      variable.param = i;
+      define(function.params.get(i));
+    }
+  }
+
+  private void endFunction(final Stmt.Function function) {
+    endScope();
+    final int count = current_scope.capture_slots.size();
+    function.capture_depths = new int[count];
+    function.capture_slots = new int[count];
+    for (int i = 0; i < count; i++) {
+      function.capture_depths[i] = current_scope.capture_depths.get(i);
+      function.capture_slots[i] = current_scope.capture_slots.get(i);
+    }
+    current_scope = current_scope.enclosing;
   }
 
   private void resolveFunction(final Stmt.Function function, final FunctionType type) {
     final FunctionType enclosingFunction = current_function;
     current_function = type;
-    beginScope();
-    for (final Token param : function.params) {
-      declare(param);
-      define(param);
-    }
+    beginFunction(function, type);
     resolve(function.body);
-    endScope();
+    endFunction(function);
     current_function = enclosingFunction;
   }
 
@@ -79,66 +190,100 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     final FunctionType enclosingFunction = current_function;
     current_function = FunctionType.INITIALIZER;
-    beginScope();
-    for (final Token param : function.params) {
-      declare(param);
-      define(param);
-    }
+    beginFunction(function, FunctionType.INITIALIZER);
     final boolean old_allowed = super_init_allowed;
     for (final Stmt statement : function.body) {
       resolve(statement);
       if (super_init_allowed) super_init_allowed = false;
     }
     super_init_allowed = old_allowed;
-    endScope();
+    endFunction(function);
     current_function = enclosingFunction;
   }
 
-  private void declare(final Token name) {
-    if (scopes.isEmpty()) return;
-    final Map<String, Pair<VariableState, Token>> scope = scopes.peek();
+  // Returns null for globals, which are not tracked in scopes
+  private Variable declare(final Token name) {
+    if (scopes.isEmpty()) return null;
+    final Map<String, Variable> scope = scopes.peek();
     if (scope.containsKey(name.lexeme)) {
       Lox.error(name, "Variable with this name already declared in this scope.");
     }
-    scope.put(name.lexeme, new Pair<>(VariableState.DECLARED, name));
+    // Slots are handed out in declaration order, matching Environment.define
+    final Variable variable = new Variable(VariableState.DECLARED, name, scope.size());
+    scope.put(name.lexeme, variable);
+    return variable;
+  }
+
+  private void box(final Variable variable) {
+    if (variable.param >= 0) {
+      final Stmt.Function function = (Stmt.Function) variable.declaration;
+      if (function.boxed_params == null) function.boxed_params = new boolean[function.params.size()];
+      function.boxed_params[variable.param] = true;
+    } else if (variable.declaration instanceof Stmt.Var) {
+      ((Stmt.Var) variable.declaration).is_boxed = true;
+    } else if (variable.declaration instanceof Stmt.Function) {
+      ((Stmt.Function) variable.declaration).is_boxed = true;
+    } else if (variable.declaration instanceof Stmt.Class) {
+      ((Stmt.Class) variable.declaration).is_boxed = true;
+    }
+    for (final Expr use : variable.uses) {
+      if (use instanceof Expr.Variable)
+        ((Expr.Variable) use).is_boxed = true;
+      else
+        ((Expr.Assign) use).is_boxed = true;
+    }
   }
 
   private void define(final Token name) {
     if (scopes.isEmpty()) return;
-    scopes.peek().put(name.lexeme, new Pair<>(VariableState.DEFINED, name));
+    scopes.peek().get(name.lexeme).state = VariableState.DEFINED;
   }
 
   private void beginScope() {
-    scopes.push(new HashMap<String, Pair<VariableState, Token>>());
+    scopes.push(new HashMap<String, Variable>());
   }
 
   private void endScope() {
     // Variables are going out of scope! If never accessed, report error
-    final Map<String, Pair<VariableState, Token>> scope = scopes.peek();
-    for (Map.Entry<String, Pair<VariableState, Token>> entry : scope.entrySet()) {
+    final Map<String, Variable> scope = scopes.peek();
+    for (Map.Entry<String, Variable> entry : scope.entrySet()) {
+      final Variable captured = entry.getValue();
+      if (captured.captured && (captured.reassigned || captured.captured_uninitialized))
+        box(captured);
       final String variable_name = entry.getKey();
       if (variable_name.equals("super") || variable_name.equals("this"))
         continue; // Don't warn if this or super are unused
-      final Pair<VariableState, Token> pair = entry.getValue();
-      final VariableState state = pair.getKey();
-      final Token token = pair.getValue();
-      if (state != VariableState.ACCESSED)
-        Lox.warning(token, "Unused local variable '" + entry.getKey() + "'");
+      final Variable variable = entry.getValue();
+      if (variable.state != VariableState.ACCESSED)
+        Lox.warning(variable.token, "Unused local variable '" + entry.getKey() + "'");
     }
     scopes.pop();
   }
 
   @Override
   public Void visitBlockStmt(final Stmt.Block stmt) {
-    beginScope();
+    // A block that declares nothing runs in the enclosing environment, and is not a scope here
+    // either, so depths skip it
+    stmt.has_scope = declares(stmt.statements);
+    if (stmt.has_scope) beginScope();
     resolve(stmt.statements);
-    endScope();
+    if (stmt.has_scope) endScope();
     return null;
   }
 
+  private static boolean declares(final List<Stmt> statements) {
+    for (final Stmt statement : statements) {
+      if (statement instanceof Stmt.Var || statement instanceof Stmt.Function || statement instanceof Stmt.Class)
+        return true;
+    }
+    return false;
+  }
+
   @Override
   public Void visitVarStmt(final Stmt.Var stmt) {
-    declare(stmt.name);
+    final Variable variable = declare(stmt.name);
+    if (variable != null) variable.declaration = stmt;
+    else bindGlobal(stmt.name, stmt);
     resolve(stmt.initializer);
     define(stmt.name);
     return null;
@@ -146,17 +291,37 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitVariableExpr(final Expr.Variable expr) {
-    if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) != null && scopes.peek().get(expr.name.lexeme).getKey() == VariableState.DECLARED) {
+    if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) != null && scopes.peek().get(expr.name.lexeme).state == VariableState.DECLARED) {
       Lox.error(expr.name, "Cannot read local variable in its own initializer.");
     }
-    resolveLocal(expr, expr.name);
+    final Location location = resolveLocal(expr.name);
+    expr.is_global = location == null;
+    if (expr.is_global) {
+      expr.slot = interpreter.globals.indexOf(expr.name.lexeme);
+    } else {
+      expr.depth = location.depth;
+      expr.slot = location.slot;
+      expr.is_upvalue = location.is_upvalue;
+      location.variable.uses.add(expr);
+    }
     return null;
   }
 
   @Override
   public Void visitAssignExpr(final Expr.Assign expr) {
     resolve(expr.value);
-    resolveLocal(expr, expr.name);
+    final Location location = resolveLocal(expr.name);
+    expr.is_global = location == null;
+    if (expr.is_global) {
+      expr.slot = interpreter.globals.indexOf(expr.name.lexeme);
+      rebound_globals.add(expr.name.lexeme);
+    } else {
+      expr.depth = location.depth;
+      expr.slot = location.slot;
+      expr.is_upvalue = location.is_upvalue;
+      location.variable.reassigned = true;
+      location.variable.uses.add(expr);
+    }
     return null;
   }
 
@@ -166,15 +331,26 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       Lox.error(expr.keyword, "Cannot use 'this' outside of a class.");
       return null;
     }
-    resolveLocal(expr, expr.keyword);
+    final Location location = resolveLocal(expr.keyword);
+    expr.depth = location.depth;
+    expr.slot = location.slot;
+    expr.is_upvalue = location.is_upvalue;
     return null;
   }
 
   @Override
   public Void visitFunctionStmt(final Stmt.Function stmt) {
-    declare(stmt.name);
+    final Variable variable = declare(stmt.name);
     define(stmt.name);
+    // The function is only stored in its variable after its closure has been created
+    if (variable != null) {
+      variable.declaration = stmt;
+      variable.initialized = false;
+    } else {
+      bindGlobal(stmt.name, stmt);
+    }
     resolveFunction(stmt, FunctionType.FUNCTION);
+    if (variable != null) variable.initialized = true;
     return null;
   }
 
@@ -198,6 +374,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       Lox.error(stmt.keyword, "Cannot return from top-level code.");
     if (current_function == FunctionType.INITIALIZER && stmt.value != null)
       Lox.error(stmt.keyword, "Cannot return value from initializer.");
+    // Nothing is left to do in the function once a returned call has been made, so the
+    // interpreter can make it from the caller's frame instead of a new one
+    stmt.is_tail_call = stmt.value instanceof Expr.Call;
     resolve(stmt.value);
     return null;
   }
@@ -218,6 +397,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitWhileStmt(final Stmt.While stmt) {
     resolve(stmt.condition);
     resolve(stmt.body);
+    resolve(stmt.increment);
     return null;
   }
 
@@ -225,17 +405,21 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitClassStmt(final Stmt.Class stmt) {
     final ClassType parent_class = current_class;
     current_class = stmt.superclass == null ? ClassType.CLASS : ClassType.SUBCLASS;
-    declare(stmt.name);
+    final Variable variable = declare(stmt.name);
     define(stmt.name);
+    if (variable != null) {
+      variable.declaration = stmt;
+      variable.initialized = false;
+    } else {
+      bindGlobal(stmt.name, stmt);
+    }
     if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme))
       Lox.error(stmt.superclass.name, "Cannot inherit from self.");
     resolve(stmt.superclass);
     if (stmt.superclass != null) {
       beginScope();
-      scopes.peek().put("super", new Pair<>(VariableState.DEFINED, new Token(TokenType.IDENTIFIER, "")));
+      scopes.peek().put("super", new Variable(VariableState.DEFINED, new Token(TokenType.IDENTIFIER, ""), 0));
     }
-    beginScope();
-    scopes.peek().put("this", new Pair<>(VariableState.DEFINED, new Token(TokenType.IDENTIFIER, "")));
     for (final Stmt.Function method : stmt.methods) {
       final boolean is_initializer = method.name.lexeme.equals("init");
       final FunctionType declaration = is_initializer ? FunctionType.INITIALIZER : FunctionType.METHOD;
@@ -244,10 +428,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       else
         resolveFunction(method, declaration);
     }
-    endScope();
     if (stmt.superclass != null) {
       endScope();
     }
+    if (variable != null) variable.initialized = true;
     current_class = parent_class;
     return null;
   }
@@ -326,7 +510,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       Lox.error(expr.keyword, "Cannot use 'super' in a class with no superclass.");
     else if (expr.method.lexeme.equals("init") && !super_init_allowed)
       Lox.error(expr.keyword, "Calling super.init only allowed on first statement.");
-    resolveLocal(expr, expr.keyword);
+    else {
+      final Location location = resolveLocal(expr.keyword);
+      expr.depth = location.depth;
+      expr.slot = location.slot;
+      expr.is_upvalue = location.is_upvalue;
+      final Token keyword = expr.keyword;
+      expr.receiver = new Expr.This(new Token(TokenType.THIS, "this", null, keyword.line, keyword.start_column, keyword.end_column));
+      resolve(expr.receiver);
+    }
     return null;
   }
 }
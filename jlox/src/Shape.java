@@ -0,0 +1,40 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// A hidden class: the field layout shared by every instance that acquired the same fields in the
+// same order. Each shape maps field names to slots in LoxInstance.values; adding a field moves an
+// instance along a transition to a child shape, which is remembered so later instances that add
+// the same field reach the same shape. Every class has its own root, so a shape also determines
+// the class, and inline caches can key field slots and methods on the shape alone.
+class Shape {
+  private final Map<String, Integer> slots;
+  private final Map<String, Shape> transitions = new HashMap<>();
+  final int size;
+
+  Shape() {
+    this.slots = new HashMap<>();
+    this.size = 0;
+  }
+
+  private Shape(final Shape parent, final String name) {
+    this.slots = new HashMap<>(parent.slots);
+    this.slots.put(name, parent.size);
+    this.size = parent.size + 1;
+  }
+
+  int indexOf(final String name) {
+    final Integer slot = slots.get(name);
+    return slot == null ? -1 : slot;
+  }
+
+  Shape add(final String name) {
+    Shape shape = transitions.get(name);
+    if (shape == null) {
+      shape = new Shape(this, name);
+      transitions.put(name, shape);
+    }
+    return shape;
+  }
+}
@@ -0,0 +1,23 @@
+package com.craftinginterpreters.lox;
+
+// The operation an operator node has specialized itself on, operator and operand types together,
+// so that a specialized execution only has to check its operands. A node starts out
+// UNINITIALIZED, specializes on the operands of its first execution, and falls back to GENERIC
+// for good the first time its operands no longer match.
+enum Specialization {
+  UNINITIALIZED,
+  ADD_NUMBERS,
+  SUBTRACT_NUMBERS,
+  MULTIPLY_NUMBERS,
+  DIVIDE_NUMBERS,
+  GREATER_NUMBERS,
+  GREATER_EQUAL_NUMBERS,
+  LESS_NUMBERS,
+  LESS_EQUAL_NUMBERS,
+  EQUAL_NUMBERS,
+  NOT_EQUAL_NUMBERS,
+  CONCAT_STRINGS,
+  EQUAL_STRINGS,
+  NOT_EQUAL_STRINGS,
+  GENERIC
+}
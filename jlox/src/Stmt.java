@@ -42,6 +42,8 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+
+    boolean is_boxed = false;
   }
 
   static class Block extends Stmt {
@@ -55,6 +57,8 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+
+    boolean has_scope = true;
   }
 
   static class If extends Stmt {
@@ -75,9 +79,10 @@ abstract class Stmt {
   }
 
   static class While extends Stmt {
-    While(final Expr condition, final Stmt body) {
+    While(final Expr condition, final Stmt body, final Expr increment) {
       this.condition = condition;
       this.body = body;
+      this.increment = increment;
     }
 
     @Override
@@ -87,6 +92,7 @@ abstract class Stmt {
 
     final Expr condition;
     final Stmt body;
+    final Expr increment;
   }
 
   static class Function extends Stmt {
@@ -108,6 +114,14 @@ abstract class Stmt {
     final List<Stmt> body;
     final boolean is_static;
     final boolean is_getter;
+
+    boolean is_boxed = false;
+    boolean[] boxed_params = null;
+    int[] capture_depths = null;
+    int[] capture_slots = null;
+    int calls = 0;
+    CompiledFunction compiled = null;
+    Chunk chunk = null;
   }
 
   static class Return extends Stmt {
@@ -123,6 +137,8 @@ abstract class Stmt {
 
     final Token keyword;
     final Expr value;
+
+    boolean is_tail_call = false;
   }
 
   static class Break extends Stmt {
@@ -166,6 +182,8 @@ abstract class Stmt {
     final Token name;
     final List<Stmt.Function> methods;
     final Expr.Variable superclass;
+
+    boolean is_boxed = false;
   }
 
   abstract <R> R accept(final Visitor<R> visitor);
@@ -0,0 +1,434 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.Chunk.*;
+
+// Runs Chunks on a single value stack. Calls from one Lox function to another, and to a class
+// whose initializer is all it runs, push a frame and stay in the dispatch loop; only calls made
+// from Java (natives, getters, classes that construct their superclass) start a nested loop. The
+// frames are on the heap, so recursion is bounded by Lox.maxDepth rather than by the Java stack.
+// Globals, classes and instances are shared with the interpreter.
+class VM {
+  private static class Frame {
+    LoxFunction function; // Null for a script
+    Chunk chunk;
+    int ip;
+    // The frame's first slot, and the slot its result replaces when it returns
+    int base, callee;
+  }
+
+  private final Interpreter interpreter;
+  private Object[] stack = new Object[256];
+  private int sp = 0;
+  private Frame[] frames = new Frame[64];
+  private int frame_count = 0;
+
+  VM(final Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  void interpret(final Chunk script) {
+    sp = 0;
+    frame_count = 0;
+    try {
+      push(null, script, 0, 0);
+      run(0);
+    } catch (final RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+
+  // Calls a function from Java. Arity and receiver have already been checked by the caller. Such
+  // calls nest a run on the Java stack, so they can run out of it before reaching Lox.maxDepth.
+  Object call(final LoxFunction function, final LoxInstance receiver, final Object[] arguments, final Token caller) {
+    checkDepth(caller);
+    final int callee = sp;
+    reserve(arguments.length + 1);
+    stack[sp++] = function;
+    for (final Object argument : arguments) stack[sp++] = argument;
+    enter(function, receiver, callee);
+    final Object result;
+    try {
+      result = run(frame_count - 1);
+    } catch (final StackOverflowError error) {
+      throw new RuntimeError(caller, "Stack overflow.");
+    }
+    sp--;
+    return result;
+  }
+
+  private void reserve(final int slots) {
+    if (sp + slots > stack.length) stack = Arrays.copyOf(stack, Math.max(2 * stack.length, sp + slots));
+  }
+
+  private Frame push(final LoxFunction function, final Chunk chunk, final int base, final int callee) {
+    if (frame_count == frames.length) frames = Arrays.copyOf(frames, 2 * frame_count);
+    Frame frame = frames[frame_count];
+    if (frame == null) frame = frames[frame_count] = new Frame();
+    frame_count++;
+    frame.function = function;
+    frame.chunk = chunk;
+    frame.ip = 0;
+    frame.base = base;
+    frame.callee = callee;
+    // No instruction pushes more than one value, so the code length bounds the stack a frame uses
+    reserve(chunk.count);
+    return frame;
+  }
+
+  // The function and its arguments are on top of the stack, starting at callee
+  private Frame enter(final LoxFunction function, final LoxInstance receiver, final int callee) {
+    final int base;
+    if (function.type == LoxFunctionType.FUNCTION) {
+      base = callee + 1;
+    } else {
+      stack[callee] = receiver;
+      base = callee;
+    }
+    final boolean[] boxed_params = function.declaration.boxed_params;
+    if (boxed_params != null) {
+      final int first = function.type == LoxFunctionType.FUNCTION ? base : base + 1;
+      for (int i = 0; i < boxed_params.length; i++)
+        if (boxed_params[i]) stack[first + i] = new Environment.Box(stack[first + i]);
+    }
+    Metrics.function_calls.increment();
+    if (Profiler.active) Profiler.push(function.declaration);
+    return push(function, function.declaration.chunk, base, callee);
+  }
+
+  // Calls the function below the top argument_count values, on the given receiver if it is a Lox
+  // function, and returns the frame to continue in: a new one if the function (or the class's
+  // initializer) has a chunk, otherwise the current one with the result pushed
+  private Frame call(final Frame frame, final Object function, final LoxInstance receiver,
+                     final int argument_count, final Token paren) {
+    final int callee = sp - argument_count - 1;
+    if (function instanceof LoxFunction) {
+      final LoxFunction lox_function = (LoxFunction) function;
+      if (argument_count != lox_function.arity())
+        throw new RuntimeError(paren, "Expected " + lox_function.arity() + " arguments but got " + argument_count + ".");
+      if (lox_function.declaration.chunk != null) {
+        lox_function.checkReceiver(receiver, paren);
+        final int base = replace(frame, callee);
+        checkDepth(paren);
+        return enter(lox_function, receiver, base);
+      }
+    } else if (function instanceof LoxClass) {
+      // The initializer's frame returns the instance, which replaces the class on the stack
+      final LoxClass _class = (LoxClass) function;
+      final LoxFunction initializer = _class.directInitializer();
+      if (initializer != null && initializer.declaration.chunk != null) {
+        Interpreter.checkArity(_class, argument_count, paren);
+        final int base = replace(frame, callee);
+        checkDepth(paren);
+        return enter(initializer, _class.instantiate(interpreter), base);
+      }
+    }
+    final Object result;
+    try {
+      result = callOut(function, receiver, argument_count, paren);
+    } catch (final StackOverflowError error) {
+      throw new RuntimeError(paren, "Stack overflow.");
+    }
+    sp = callee;
+    stack[sp++] = result;
+    return frame;
+  }
+
+  // Once calls are nested deeper than Interpreter.TAIL_CALL_DEPTH, a call whose result the frame
+  // returns straight away takes the frame's place, so that tail calls run in constant space.
+  // Returns where the callee and its arguments start now.
+  private int replace(final Frame frame, final int callee) {
+    if (frame_count <= Interpreter.TAIL_CALL_DEPTH || frame.function == null
+        || frame.function.type == LoxFunctionType.INITIALIZER || frame.chunk.code[frame.ip] != OP_RETURN) return callee;
+    final int count = sp - callee;
+    System.arraycopy(stack, callee, stack, frame.callee, count);
+    sp = frame.callee + count;
+    frame_count--;
+    if (Profiler.active) Profiler.pop();
+    return frame.callee;
+  }
+
+  // The script's frame does not count towards the depth
+  private void checkDepth(final Token paren) {
+    if (frame_count > Lox.maxDepth) throw new RuntimeError(paren, "Stack overflow.");
+  }
+
+  // Calls natives, classes and functions the VM does not run through the fixed-arity entry points
+  private Object callOut(final Object function, final LoxInstance receiver, final int argument_count, final Token paren) {
+    final int first = sp - argument_count;
+    if (function instanceof LoxFunction) {
+      final LoxFunction lox_function = (LoxFunction) function;
+      switch (argument_count) {
+        case 0: return lox_function.invoke0(interpreter, receiver, paren);
+        case 1: return lox_function.invoke1(interpreter, receiver, stack[first], paren);
+        case 2: return lox_function.invoke2(interpreter, receiver, stack[first], stack[first + 1], paren);
+        case 3: return lox_function.invoke3(interpreter, receiver, stack[first], stack[first + 1], stack[first + 2], paren);
+        default: return lox_function.invoke(interpreter, receiver, Arrays.copyOfRange(stack, first, sp), paren);
+      }
+    }
+    final LoxCallable callable = Interpreter.callable(function, argument_count, paren);
+    switch (argument_count) {
+      case 0: return callable.call0(interpreter, paren);
+      case 1: return callable.call1(interpreter, stack[first], paren);
+      case 2: return callable.call2(interpreter, stack[first], stack[first + 1], paren);
+      case 3: return callable.call3(interpreter, stack[first], stack[first + 1], stack[first + 2], paren);
+      default: return callable.call(interpreter, Arrays.copyOfRange(stack, first, sp), paren);
+    }
+  }
+
+  private LoxClass createClass(final Stmt.Class declaration, final int method_count) {
+    final Map<String, LoxFunction> methods = new HashMap<>();
+    for (int i = sp - method_count; i < sp; i++) {
+      final LoxFunction method = (LoxFunction) stack[i];
+      methods.put(method.declaration.name.lexeme, method);
+    }
+    sp -= method_count;
+    final LoxClass superclass = declaration.superclass == null ? null : (LoxClass) stack[sp - 1];
+    return new LoxClass(declaration.name.lexeme, methods, superclass, interpreter);
+  }
+
+  // Runs until the frame at depth exit returns, and returns its result (which is also left on the stack)
+  private Object run(final int exit) {
+    Frame frame = frames[frame_count - 1];
+    int[] code = frame.chunk.code;
+    Object[] constants = frame.chunk.constants;
+    int ip = frame.ip;
+    while (true) {
+      switch (code[ip++]) {
+        case OP_CONSTANT: stack[sp++] = constants[code[ip++]]; break;
+        case OP_NIL: stack[sp++] = null; break;
+        case OP_TRUE: stack[sp++] = true; break;
+        case OP_FALSE: stack[sp++] = false; break;
+        case OP_UNINITIALIZED: stack[sp++] = Environment.UNINITIALIZED; break;
+        case OP_POP: sp--; break;
+        case OP_POPN: sp -= code[ip++]; break;
+        case OP_DUP: stack[sp] = stack[sp - 1]; sp++; break;
+        case OP_GET_LOCAL: stack[sp++] = stack[frame.base + code[ip++]]; break;
+        case OP_GET_LOCAL_CHECKED:
+          stack[sp++] = CompiledFunction.checkInitialized(stack[frame.base + code[ip++]], (Token) constants[code[ip++]]);
+          break;
+        case OP_SET_LOCAL: stack[frame.base + code[ip++]] = stack[sp - 1]; break;
+        case OP_BOX: stack[sp - 1] = new Environment.Box(stack[sp - 1]); break;
+        case OP_GET_BOXED: {
+          final Environment.Box box = (Environment.Box) stack[frame.base + code[ip++]];
+          stack[sp++] = CompiledFunction.checkInitialized(box.value, (Token) constants[code[ip++]]);
+          break;
+        }
+        case OP_SET_BOXED: ((Environment.Box) stack[frame.base + code[ip++]]).value = stack[sp - 1]; break;
+        case OP_GET_UPVALUE:
+          stack[sp++] = CompiledFunction.checkInitialized(frame.function.captures[code[ip++]], (Token) constants[code[ip++]]);
+          break;
+        case OP_GET_UPVALUE_BOXED: {
+          final Environment.Box box = (Environment.Box) frame.function.captures[code[ip++]];
+          stack[sp++] = CompiledFunction.checkInitialized(box.value, (Token) constants[code[ip++]]);
+          break;
+        }
+        case OP_SET_UPVALUE_BOXED: ((Environment.Box) frame.function.captures[code[ip++]]).value = stack[sp - 1]; break;
+        case OP_GET_THIS_UPVALUE: stack[sp++] = frame.function.captures[code[ip++]]; break;
+        case OP_GET_GLOBAL: {
+          final int index = code[ip++];
+          stack[sp++] = interpreter.globals.get(index, (Token) constants[code[ip++]]);
+          break;
+        }
+        case OP_SET_GLOBAL: {
+          final int index = code[ip++];
+          interpreter.globals.assign(index, (Token) constants[code[ip++]], stack[sp - 1]);
+          break;
+        }
+        case OP_DEFINE_GLOBAL: interpreter.globals.define(((Token) constants[code[ip++]]).lexeme, stack[--sp]); break;
+        case OP_GET_PROPERTY: {
+          final Object object = stack[--sp];
+          final Token name = (Token) constants[code[ip++]];
+          final Object value = Interpreter.get(object, name, (PropertyCache) constants[code[ip++]]);
+          stack[sp++] = value;
+          break;
+        }
+        case OP_CHECK_INSTANCE: CompiledFunction.instance(stack[sp - 1], (Token) constants[code[ip++]]); break;
+        case OP_SET_PROPERTY: {
+          final Object value = stack[--sp];
+          final Token name = (Token) constants[code[ip++]];
+          ((LoxInstance) stack[sp - 1]).set(name, value, (PropertyCache) constants[code[ip++]]);
+          stack[sp - 1] = value;
+          break;
+        }
+        case OP_GET_SUPER: {
+          final LoxInstance receiver = (LoxInstance) stack[--sp];
+          final LoxClass superclass = (LoxClass) stack[--sp];
+          final Object method = interpreter.superMethod(superclass, receiver, (Token) constants[code[ip++]]);
+          stack[sp++] = method;
+          break;
+        }
+        case OP_ADD: {
+          final Object right = stack[--sp], left = stack[sp - 1];
+          stack[sp - 1] = left instanceof Double && right instanceof Double
+            ? (Object) ((double) left + (double) right)
+            : CompiledFunction.add(left, right, (Token) constants[code[ip]]);
+          ip++;
+          break;
+        }
+        case OP_SUBTRACT: {
+          final Token operator = (Token) constants[code[ip++]];
+          final Object right = stack[--sp];
+          stack[sp - 1] = CompiledFunction.left(stack[sp - 1], operator) - CompiledFunction.right(right, operator);
+          break;
+        }
+        case OP_MULTIPLY: {
+          final Token operator = (Token) constants[code[ip++]];
+          final Object right = stack[--sp];
+          stack[sp - 1] = CompiledFunction.left(stack[sp - 1], operator) * CompiledFunction.right(right, operator);
+          break;
+        }
+        case OP_DIVIDE: {
+          final Token operator = (Token) constants[code[ip++]];
+          final Object right = stack[--sp];
+          final double dividend = CompiledFunction.left(stack[sp - 1], operator);
+          stack[sp - 1] = CompiledFunction.divide(dividend, CompiledFunction.right(right, operator), operator);
+          break;
+        }
+        case OP_NEGATE: stack[sp - 1] = -CompiledFunction.right(stack[sp - 1], (Token) constants[code[ip++]]); break;
+        case OP_NOT: stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]); break;
+        case OP_EQUAL: {
+          final Object right = stack[--sp];
+          stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], right);
+          break;
+        }
+        case OP_NOT_EQUAL: {
+          final Object right = stack[--sp];
+          stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], right);
+          break;
+        }
+        case OP_GREATER: {
+          final Token operator = (Token) constants[code[ip++]];
+          final Object right = stack[--sp];
+          stack[sp - 1] = CompiledFunction.left(stack[sp - 1], operator) > CompiledFunction.right(right, operator);
+          break;
+        }
+        case OP_GREATER_EQUAL: {
+          final Token operator = (Token) constants[code[ip++]];
+          final Object right = stack[--sp];
+          stack[sp - 1] = CompiledFunction.left(stack[sp - 1], operator) >= CompiledFunction.right(right, operator);
+          break;
+        }
+        case OP_LESS: {
+          final Token operator = (Token) constants[code[ip++]];
+          final Object right = stack[--sp];
+          stack[sp - 1] = CompiledFunction.left(stack[sp - 1], operator) < CompiledFunction.right(right, operator);
+          break;
+        }
+        case OP_LESS_EQUAL: {
+          final Token operator = (Token) constants[code[ip++]];
+          final Object right = stack[--sp];
+          stack[sp - 1] = CompiledFunction.left(stack[sp - 1], operator) <= CompiledFunction.right(right, operator);
+          break;
+        }
+        case OP_JUMP: ip = code[ip]; break;
+        case OP_JUMP_IF_FALSE:
+          if (Interpreter.isTruthy(stack[--sp])) ip++;
+          else ip = code[ip];
+          break;
+        case OP_OR:
+          if (Interpreter.isTruthy(stack[sp - 1])) {
+            ip = code[ip];
+          } else {
+            sp--;
+            ip++;
+          }
+          break;
+        case OP_AND:
+          if (!Interpreter.isTruthy(stack[sp - 1])) {
+            ip = code[ip];
+          } else {
+            sp--;
+            ip++;
+          }
+          break;
+        case OP_CALL: {
+          final int argument_count = code[ip++];
+          final Token paren = (Token) constants[code[ip++]];
+          final Object function = stack[sp - argument_count - 1];
+          frame.ip = ip;
+          frame = call(frame, function,
+            function instanceof LoxFunction ? ((LoxFunction) function).receiver : null, argument_count, paren);
+          code = frame.chunk.code;
+          constants = frame.chunk.constants;
+          ip = frame.ip;
+          break;
+        }
+        case OP_GET_METHOD: {
+          // Leaves the receiver and its unbound method, or the property's value and nil
+          final Object object = stack[sp - 1];
+          final Token name = (Token) constants[code[ip++]];
+          final PropertyCache cache = (PropertyCache) constants[code[ip++]];
+          final LoxFunction method = object instanceof LoxInstance ? ((LoxInstance) object).method(name, cache) : null;
+          if (method == null) stack[sp - 1] = Interpreter.get(object, name, cache);
+          stack[sp++] = method;
+          break;
+        }
+        case OP_INVOKE: {
+          final int argument_count = code[ip++];
+          final Token paren = (Token) constants[code[ip++]];
+          // Drop the method's slot so the arguments follow the receiver, as for any other call
+          final int callee = sp - argument_count - 2;
+          final LoxFunction method = (LoxFunction) stack[callee + 1];
+          System.arraycopy(stack, callee + 2, stack, callee + 1, argument_count);
+          sp--;
+          final Object function = method != null ? method : stack[callee];
+          final LoxInstance receiver = method != null ? (LoxInstance) stack[callee]
+            : function instanceof LoxFunction ? ((LoxFunction) function).receiver : null;
+          frame.ip = ip;
+          frame = call(frame, function, receiver, argument_count, paren);
+          code = frame.chunk.code;
+          constants = frame.chunk.constants;
+          ip = frame.ip;
+          break;
+        }
+        case OP_CLOSURE: {
+          final Prototype prototype = (Prototype) constants[code[ip++]];
+          final Object[] captures = new Object[prototype.captures.length];
+          for (int i = 0; i < captures.length; i++) {
+            final int capture = prototype.captures[i];
+            captures[i] = capture >= 0 ? stack[frame.base + capture] : frame.function.captures[-1 - capture];
+          }
+          stack[sp++] = new LoxFunction(prototype.declaration, captures, prototype.type);
+          break;
+        }
+        case OP_CHECK_SUPERCLASS:
+          if (!(stack[sp - 1] instanceof LoxClass))
+            throw new RuntimeError((Token) constants[code[ip]], "Superclass must be a class.");
+          ip++;
+          break;
+        case OP_CLASS: {
+          final Stmt.Class declaration = (Stmt.Class) constants[code[ip++]];
+          final LoxClass _class = createClass(declaration, code[ip++]);
+          stack[sp++] = _class;
+          break;
+        }
+        case OP_STATIC_INIT: {
+          final LoxFunction block = (LoxFunction) stack[--sp];
+          block.invoke0(interpreter, (LoxInstance) stack[sp - 1], (Token) constants[code[ip++]]);
+          break;
+        }
+        case OP_RETURN: {
+          final Object value = stack[--sp];
+          final Frame done = frames[--frame_count];
+          if (Profiler.active && done.function != null) Profiler.pop();
+          final Object result = done.function != null && done.function.type == LoxFunctionType.INITIALIZER
+            ? stack[done.base] : value;
+          sp = done.callee;
+          stack[sp++] = result;
+          if (frame_count == exit) return result;
+          frame = frames[frame_count - 1];
+          code = frame.chunk.code;
+          constants = frame.chunk.constants;
+          ip = frame.ip;
+          break;
+        }
+        default:
+          throw new IllegalStateException("Unknown opcode " + code[ip - 1]);
+      }
+    }
+  }
+}
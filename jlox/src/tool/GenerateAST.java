@@ -13,33 +13,33 @@ public class GenerateAST {
     }
     final String outputDir = args[0];
     defineAst(outputDir, "Expr", Arrays.asList(
-      "Binary   : Expr left, Token operator, Expr right",
+      "Binary   : Expr left, Token operator, Expr right | Specialization specialization = Specialization.UNINITIALIZED",
       "Grouping : Expr expression",
       "Literal  : Object value",
       "Unary    : Token operator, Expr right",
       "Comma    : Expr left, Expr right",
       "Ternary  : Expr condition, Expr true_expr, Expr false_expr",
-      "Variable : Token name",
-      "Assign   : Token name, Expr value",
+      "Variable : Token name | int depth = -1, int slot = -1, boolean is_global = true, boolean is_upvalue = false, boolean is_boxed = false",
+      "Assign   : Token name, Expr value | int depth = -1, int slot = -1, boolean is_global = true, boolean is_upvalue = false, boolean is_boxed = false",
       "Logical  : Expr left, Token operator, Expr right",
-      "Call     : Expr callee, Token paren, List<Expr> arguments",
-      "Get      : Expr object, Token name",
-      "Set      : Expr object, Token name, Expr value",
-      "This     : Token keyword",
-      "Super    : Token keyword, Token method"
+      "Call     : Expr callee, Token paren, List<Expr> arguments | PropertyCache cache = new PropertyCache(), Expr inlined = null",
+      "Get      : Expr object, Token name | PropertyCache cache = new PropertyCache()",
+      "Set      : Expr object, Token name, Expr value | PropertyCache cache = new PropertyCache()",
+      "This     : Token keyword | int depth = -1, int slot = -1, boolean is_upvalue = false",
+      "Super    : Token keyword, Token method | int depth = -1, int slot = -1, boolean is_upvalue = false, This receiver = null"
     ));
 
     defineAst(outputDir, "Stmt", Arrays.asList(
       "Expression   : Expr expression",
-      "Var          : Token name, Expr initializer",
-      "Block        : List<Stmt> statements",
+      "Var          : Token name, Expr initializer | boolean is_boxed = false",
+      "Block        : List<Stmt> statements | boolean has_scope = true",
       "If           : Expr condition, Stmt true_branch, Stmt false_branch",
-      "While        : Expr condition, Stmt body",
-      "Function     : Token name, List<Token> params, List<Stmt> body, boolean is_static, boolean is_getter",
-      "Return       : Token keyword, Expr value",
+      "While        : Expr condition, Stmt body, Expr increment",
+      "Function     : Token name, List<Token> params, List<Stmt> body, boolean is_static, boolean is_getter | boolean is_boxed = false, boolean[] boxed_params = null, int[] capture_depths = null, int[] capture_slots = null, int calls = 0, CompiledFunction compiled = null, Chunk chunk = null",
+      "Return       : Token keyword, Expr value | boolean is_tail_call = false",
       "Break        : Token keyword",
       "Continue     : Token keyword",
-      "Class        : Token name, List<Stmt.Function> methods, Expr.Variable superclass"
+      "Class        : Token name, List<Stmt.Function> methods, Expr.Variable superclass | boolean is_boxed = false"
     ));
   }
 
@@ -55,11 +55,11 @@ public class GenerateAST {
 
     defineVisitor(writer, baseName, types);
 
-    // The AST classes.
+    // The AST classes. Fields after a '|' are filled in after parsing (e.g. by the resolver).
     for (final String type : types) {
       final String className = type.split(":")[0].trim();
-      final String fields = type.split(":")[1].trim();
-      defineType(writer, baseName, className, fields);
+      final String[] fields = type.split(":")[1].split("\\|");
+      defineType(writer, baseName, className, fields[0].trim(), fields.length > 1 ? fields[1].trim() : null);
     }
 
     // The base accept() method.
@@ -68,7 +68,7 @@ public class GenerateAST {
     writer.close();
   }
 
-  private static void defineType(PrintWriter writer, final String baseName, final String className, final String fieldList) {
+  private static void defineType(PrintWriter writer, final String baseName, final String className, final String fieldList, final String annotationList) {
     writer.println("  static class " + className + " extends " + baseName + " {");
 
     // Constructor.
@@ -103,6 +103,12 @@ public class GenerateAST {
     for (final String field : fields) {
       writer.println("    final " + field + ";");
     }
+    if (annotationList != null) {
+      writer.println();
+      for (final String annotation : annotationList.split(", ")) {
+        writer.println("    " + annotation + ";");
+      }
+    }
 
     writer.println("  }");
     writer.println();